@@ -0,0 +1,214 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the load a single client can put on a server. New connections are refused when the server already has too
+ * many connections overall or from the same address, and each address gets token buckets limiting the rate of
+ * commands and of messages, shared by all its connections.
+ * <p>
+ * The limits are configured with system properties, using the server name as a prefix (e.g. {@code smtp} or
+ * {@code pop}); a value of 0, the default, disables the corresponding limit:
+ * <ul>
+ *     <li>{@code <name>.maxConnections}: concurrent connections to the server;</li>
+ *     <li>{@code <name>.maxConnectionsPerIp}: concurrent connections from one address;</li>
+ *     <li>{@code <name>.commandsPerSecond} and {@code <name>.commandBurst}: rate of commands from one address;</li>
+ *     <li>{@code <name>.messagesPerMinute} and {@code <name>.messageBurst}: rate of messages from one address.</li>
+ * </ul>
+ */
+public class AdmissionControl {
+
+    private static final int CLEANUP_INTERVAL = 1024;
+
+    private final int maxConnections;
+    private final int maxConnectionsPerIp;
+    private final double commandsPerNano;
+    private final int commandBurst;
+    private final double messagesPerNano;
+    private final int messageBurst;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final Map<InetAddress, Client> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an admission controller. Non-positive values disable the corresponding limit.
+     *
+     * @param maxConnections      Maximum number of concurrent connections.
+     * @param maxConnectionsPerIp Maximum number of concurrent connections from one address.
+     * @param commandsPerSecond   Sustained rate of commands allowed from one address.
+     * @param commandBurst        Number of commands one address may send at once above the sustained rate.
+     * @param messagesPerMinute   Sustained rate of messages allowed from one address.
+     * @param messageBurst        Number of messages one address may send at once above the sustained rate.
+     */
+    public AdmissionControl(int maxConnections, int maxConnectionsPerIp, double commandsPerSecond, int commandBurst,
+                            double messagesPerMinute, int messageBurst) {
+        this.maxConnections = maxConnections > 0 ? maxConnections : Integer.MAX_VALUE;
+        this.maxConnectionsPerIp = maxConnectionsPerIp > 0 ? maxConnectionsPerIp : Integer.MAX_VALUE;
+        this.commandsPerNano = commandsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.commandBurst = Math.max(commandBurst, (int) Math.ceil(commandsPerSecond));
+        this.messagesPerNano = messagesPerMinute / TimeUnit.MINUTES.toNanos(1);
+        this.messageBurst = Math.max(messageBurst, 1);
+    }
+
+    /**
+     * Creates an admission controller configured from the system properties prefixed with the given server name.
+     *
+     * @param name Name of the server, used as the property prefix.
+     * @return The configured admission controller.
+     */
+    public static AdmissionControl fromSystemProperties(String name) {
+        return new AdmissionControl(
+                Integer.getInteger(name + ".maxConnections", 0),
+                Integer.getInteger(name + ".maxConnectionsPerIp", 0),
+                Double.parseDouble(System.getProperty(name + ".commandsPerSecond", "0")),
+                Integer.getInteger(name + ".commandBurst", 0),
+                Double.parseDouble(System.getProperty(name + ".messagesPerMinute", "0")),
+                Integer.getInteger(name + ".messageBurst", 0));
+    }
+
+    /**
+     * Decides whether a new connection is accepted.
+     *
+     * @param address The address of the client.
+     * @return A permit that must be closed when the connection ends, or null if the connection must be refused.
+     */
+    public Permit admit(InetAddress address) {
+        if (admitted.incrementAndGet() % CLEANUP_INTERVAL == 0) cleanup();
+
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            return null;
+        }
+
+        Client client = clients.compute(address, (key, existing) -> {
+            Client current = existing != null ? existing : new Client();
+            current.connections++;
+            return current;
+        });
+        if (client.connections > maxConnectionsPerIp) {
+            new Permit(address, client).close();
+            return null;
+        }
+        return new Permit(address, client);
+    }
+
+    /**
+     * Forgets addresses without connections whose rate limits have fully recovered.
+     */
+    private void cleanup() {
+        long now = System.nanoTime();
+        for (InetAddress address : clients.keySet()) {
+            clients.computeIfPresent(address, (key, client) -> client.isIdle(now) ? null : client);
+        }
+    }
+
+    /**
+     * State kept for every address with connections or recently used rate limits. The connection count is only
+     * changed inside {@link ConcurrentHashMap#compute}, and the buckets are guarded by the client's lock.
+     */
+    private class Client {
+
+        private int connections = 0;
+        private final TokenBucket commands = new TokenBucket(commandsPerNano, commandBurst);
+        private final TokenBucket messages = new TokenBucket(messagesPerNano, messageBurst);
+
+        private synchronized boolean isIdle(long now) {
+            return connections == 0 && commands.isFull(now) && messages.isFull(now);
+        }
+    }
+
+    /**
+     * Admission of a single connection, used to apply the rate limits of its address.
+     */
+    public class Permit implements AutoCloseable {
+
+        private final InetAddress address;
+        private final Client client;
+        private boolean closed = false;
+
+        private Permit(InetAddress address, Client client) {
+            this.address = address;
+            this.client = client;
+        }
+
+        /**
+         * Accounts for a command received on this connection.
+         *
+         * @return true if the command may be processed, false if the address exceeded its command rate.
+         */
+        public boolean tryCommand() {
+            if (commandsPerNano <= 0) return true;
+            synchronized (client) {
+                return client.commands.tryAcquire(System.nanoTime());
+            }
+        }
+
+        /**
+         * Accounts for a message started on this connection.
+         *
+         * @return true if the message may be accepted, false if the address exceeded its message rate.
+         */
+        public boolean tryMessage() {
+            if (messagesPerNano <= 0) return true;
+            synchronized (client) {
+                return client.messages.tryAcquire(System.nanoTime());
+            }
+        }
+
+        /**
+         * Releases the connection slots held by this connection.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            connections.decrementAndGet();
+            clients.computeIfPresent(address, (key, current) -> {
+                current.connections--;
+                return current.isIdle(System.nanoTime()) ? null : current;
+            });
+        }
+    }
+
+    /**
+     * A token bucket, refilled continuously at a fixed rate up to its capacity. Not thread-safe.
+     */
+    private static class TokenBucket {
+
+        private final double ratePerNano;
+        private final int capacity;
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(double ratePerNano, int capacity) {
+            this.ratePerNano = ratePerNano;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        private boolean tryAcquire(long now) {
+            refill(now);
+            if (tokens < 1) return false;
+            tokens--;
+            return true;
+        }
+
+        private boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerNano);
+            lastRefill = now;
+        }
+    }
+}
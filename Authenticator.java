@@ -0,0 +1,64 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies the credentials given by POP clients in PASS, separately from the loading of their mailbox.
+ * <p>
+ * The backend is selected with the {@code mail.auth} system property: {@code mailbox} (the default) leaves the check
+ * to {@link ca.yorku.eecs3214.mail.mailbox.Mailbox#loadMessages}, as before, while {@code file} checks the salted
+ * password hashes of the {@link PasswordFileAuthenticator}, in the file named by {@code mail.auth.file}. Since such
+ * hashes are deliberately expensive to compute, successful verifications are kept by a {@link CachingAuthenticator}
+ * for {@code mail.auth.cacheSeconds} (default 60, 0 to disable), for up to {@code mail.auth.cacheSize} credentials
+ * (default 10000), so clients polling their mailbox every few seconds do not pay for a full verification every time.
+ * Repeated failures are throttled by the {@link LoginThrottle}.
+ */
+public interface Authenticator {
+
+    /**
+     * Checks the password of a user. Called from the session threads, possibly concurrently.
+     *
+     * @param user     The user name (email address), known to the {@link UserDirectory}.
+     * @param password The password given by the client.
+     * @return true if the password is the user's, false otherwise.
+     * @throws IOException If the credentials cannot be checked.
+     */
+    boolean verify(String user, String password) throws IOException;
+
+    /**
+     * @return The authenticator used by all the sessions of this process.
+     */
+    static Authenticator getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    final class Holder {
+
+        private static final Authenticator INSTANCE = create();
+
+        private Holder() {
+        }
+
+        private static Authenticator create() {
+            String type = System.getProperty("mail.auth", "mailbox");
+            switch (type) {
+                case "mailbox":
+                    // The mailbox checks the password itself when its messages are loaded.
+                    return (user, password) -> true;
+                case "file":
+                    String file = System.getProperty("mail.auth.file");
+                    if (file == null) throw new RuntimeException("mail.auth.file must name the password file.");
+                    Authenticator backend = new PasswordFileAuthenticator(Paths.get(file),
+                            TimeUnit.SECONDS.toNanos(Long.getLong("mail.auth.refreshSeconds", 30)));
+                    long ttl = Long.getLong("mail.auth.cacheSeconds", 60);
+                    if (ttl <= 0) return backend;
+                    return new CachingAuthenticator(backend, Integer.getInteger("mail.auth.cacheSize", 10000), ttl,
+                            TimeUnit.SECONDS);
+                default:
+                    throw new RuntimeException("Unknown authenticator " + type + ".");
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Bloom filter of strings. A negative answer from {@link #mightContain(String)} is always correct, while a positive
+ * answer is wrong with a small probability, chosen when the filter is created.
+ * <p>
+ * Elements can be added concurrently with lookups, but a lookup running at the same time as the addition of the same
+ * element may not see it yet.
+ */
+public class BloomFilter {
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+    private final int capacity;
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param capacity          Number of elements the filter is sized for.
+     * @param falsePositiveRate Expected rate of false positives once the filter holds {@code capacity} elements.
+     */
+    public BloomFilter(int capacity, double falsePositiveRate) {
+        this.capacity = Math.max(capacity, 1);
+        long optimalBits = (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.numBits = (int) Math.max(64, Math.min(optimalBits, Integer.MAX_VALUE - 63));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / this.capacity * Math.log(2)));
+        this.bits = new long[(numBits + 63) / 64];
+    }
+
+    /**
+     * @return The number of elements the filter was sized for.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Adds an element to the filter.
+     *
+     * @param element The element to add.
+     */
+    public synchronized void add(String element) {
+        long hash = hash(element);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, numBits);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @param element The element to look for.
+     * @return false if the element was definitely never added, true if it probably was.
+     */
+    public boolean mightContain(String element) {
+        long hash = hash(element);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the UTF-8 bytes of the element, followed by a final mix so that both halves of the result
+     * can be used as independent hashes.
+     */
+    private static long hash(String element) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : element.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
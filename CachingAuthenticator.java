@@ -0,0 +1,84 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authenticator remembering the credentials another authenticator recently verified, so a client logging in again
+ * within the time to live is accepted without the cost of a full verification. Only successful verifications are
+ * kept, and for a short time: a changed password stops being accepted once the entries of the old one expire.
+ * <p>
+ * Entries are keyed by a SHA-256 hash of the user name and password, salted with a random value drawn when the cache
+ * is created, so the cache never holds a password, nor a hash that could be checked against one outside of this
+ * process. Once the cache holds its maximum number of entries, the least recently used are dropped.
+ */
+public class CachingAuthenticator implements Authenticator {
+
+    private static final int SALT_BYTES = 16;
+
+    private final Authenticator backend;
+    private final long timeToLive;
+    private final byte[] salt = new byte[SALT_BYTES];
+    // Expiry time of every entry, in access order, so the first entries are the least recently used.
+    private final LinkedHashMap<String, Long> verified;
+
+    /**
+     * Creates a cache in front of an authenticator.
+     *
+     * @param backend    The authenticator verifying the credentials that are not in the cache.
+     * @param maxEntries Maximum number of credentials kept.
+     * @param timeToLive Time a verification is kept.
+     * @param unit       Unit of the time to live.
+     */
+    public CachingAuthenticator(Authenticator backend, int maxEntries, long timeToLive, TimeUnit unit) {
+        this.backend = backend;
+        this.timeToLive = unit.toNanos(timeToLive);
+        new SecureRandom().nextBytes(salt);
+        this.verified = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public boolean verify(String user, String password) throws IOException {
+        String key = key(user, password);
+        long now = System.nanoTime();
+        synchronized (this) {
+            Long expiry = verified.get(key);
+            if (expiry != null) {
+                if (now - expiry < 0) return true;
+                verified.remove(key);
+            }
+        }
+
+        // Verified outside of the lock, so other users can log in meanwhile.
+        if (!backend.verify(user, password)) return false;
+        synchronized (this) {
+            verified.put(key, System.nanoTime() + timeToLive);
+        }
+        return true;
+    }
+
+    private String key(String user, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(user.getBytes(StandardCharsets.UTF_8));
+            // Separates the user name from the password, so their concatenation is unambiguous.
+            digest.update((byte) 0);
+            return HexFormat.of().formatHex(digest.digest(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.MailMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Journal of the messages removed by POP sessions at QUIT, so the session only waits for one small record to be
+ * forced to disk instead of for every message to be unlinked. An expunger thread then removes the journaled messages
+ * from the {@link MessageStore} in batches, which lets the store reclaim their storage and compact its index once for
+ * many sessions, and deletes the records it has completed. Records found in the journal directory when it is opened,
+ * left by a process that stopped before expunging them, are expunged again.
+ * <p>
+ * Each record, named {@code <id>.del}, lists the removed messages one per line, as the unique id of the message (see
+ * {@link WireFormatCache#uniqueId}) followed by the path of its file. A file whose unique id changed since it was
+ * journaled is another message that reused the name, and is kept. Until they are expunged, journaled messages are
+ * hidden from the sessions that load their mailbox.
+ * <p>
+ * The journal is enabled by the {@code mail.journal.dir} system property, naming its directory. The expunger waits
+ * {@code mail.journal.batchMillis} (default 200) after a record is added, so the records of the sessions quitting
+ * meanwhile are expunged with it.
+ */
+public class DeletionJournal {
+
+    private static final String TEMP_PREFIX = "tmp-";
+    private static final String RECORD = ".del";
+
+    private static final DeletionJournal INSTANCE = create();
+
+    private final Path dir;
+    private final long batchDelay;
+    private final AtomicLong sequence = new AtomicLong();
+    private final LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    // Absolute paths of the messages journaled but not expunged yet.
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+    // Incremented after every batch of messages is unlinked, before they leave the pending set.
+    private final AtomicLong epoch = new AtomicLong();
+    private final AtomicLong expunged = new AtomicLong();
+
+    /**
+     * Creates a journal in the given directory, and starts the expunger, which first expunges the records the
+     * directory already contains.
+     *
+     * @param dir        The journal directory.
+     * @param batchDelay Time the expunger waits for more records after one is added.
+     * @param unit       Unit of the delay.
+     */
+    public DeletionJournal(Path dir, long batchDelay, TimeUnit unit) {
+        this.dir = dir;
+        this.batchDelay = unit.toNanos(batchDelay);
+        try {
+            Files.createDirectories(dir);
+            replay();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open the deletion journal in " + dir + ".", e);
+        }
+
+        Thread thread = new Thread(this::expungeLoop, "pop-expunger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The journal shared by all the sessions of this process, or null if deletions are not journaled.
+     */
+    public static DeletionJournal getInstance() {
+        return INSTANCE;
+    }
+
+    private static DeletionJournal create() {
+        String dir = System.getProperty("mail.journal.dir");
+        if (dir == null) return null;
+        return new DeletionJournal(Paths.get(dir), Long.getLong("mail.journal.batchMillis", 200),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the removal of messages, and returns once the record is on disk. The messages are hidden from the
+     * sessions loading their mailbox from then on, and removed from the store in the background.
+     *
+     * @param messages The files of the removed messages, with their unique ids, in order.
+     * @throws IOException If the record cannot be written; the messages are then not removed.
+     */
+    public void delete(Map<Path, String> messages) throws IOException {
+        if (messages.isEmpty()) return;
+        String id = System.currentTimeMillis() + "-" + sequence.incrementAndGet();
+        StringBuilder lines = new StringBuilder();
+        Map<Path, String> files = new LinkedHashMap<>();
+        for (Map.Entry<Path, String> message : messages.entrySet()) {
+            Path file = message.getKey().toAbsolutePath();
+            files.put(file, message.getValue());
+            lines.append(message.getValue()).append(' ').append(file).append('\n');
+        }
+
+        Path temp = dir.resolve(TEMP_PREFIX + id + RECORD);
+        Path record = dir.resolve(id + RECORD);
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer content = StandardCharsets.UTF_8.encode(lines.toString());
+                while (content.hasRemaining()) out.write(content);
+                out.force(true);
+            }
+            Files.move(temp, record, StandardCopyOption.ATOMIC_MOVE);
+            force(dir);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            Files.deleteIfExists(record);
+            throw e;
+        }
+        pending.addAll(files.keySet());
+        queue.add(new Record(record, files));
+    }
+
+    /**
+     * @return A number that changes whenever journaled messages have been removed from the store, to read before a
+     * mailbox is loaded and give to {@link #visible}.
+     */
+    public long getEpoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Leaves out the journaled messages from the messages of a mailbox just loaded. If messages were expunged while
+     * the mailbox was being loaded, it may list some that are already gone, which are also left out.
+     *
+     * @param messages The messages of the mailbox, in order.
+     * @param since    The epoch read before the mailbox was loaded.
+     * @return The messages still in the mailbox, in order; the given array if there are no others.
+     */
+    public MailMessage[] visible(MailMessage[] messages, long since) {
+        boolean expunging = epoch.get() != since;
+        if (pending.isEmpty() && !expunging) return messages;
+        List<MailMessage> visible = new ArrayList<>(messages.length);
+        for (MailMessage message : messages) {
+            Path file = message.getFile().toPath().toAbsolutePath();
+            if (pending.contains(file) || expunging && !Files.exists(file)) continue;
+            visible.add(message);
+        }
+        return visible.size() == messages.length ? messages : visible.toArray(new MailMessage[0]);
+    }
+
+    @Override
+    public String toString() {
+        return "deletion journal in " + dir + ", " + queue.size() + " records queued, " + expunged.get()
+                + " messages expunged";
+    }
+
+    /**
+     * Removes files left by interrupted journaling, and queues the complete records.
+     */
+    private void replay() throws IOException {
+        int records = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String file = entry.getFileName().toString();
+                if (file.startsWith(TEMP_PREFIX)) {
+                    Files.deleteIfExists(entry);
+                } else if (file.endsWith(RECORD)) {
+                    Map<Path, String> files = new LinkedHashMap<>();
+                    for (String line : Files.readAllLines(entry, StandardCharsets.UTF_8)) {
+                        String[] fields = line.split(" ", 2);
+                        if (fields.length == 2) files.put(Paths.get(fields[1]), fields[0]);
+                    }
+                    pending.addAll(files.keySet());
+                    queue.add(new Record(entry, files));
+                    records++;
+                }
+            }
+        }
+        if (records > 0) System.out.println("Queued " + records + " records left in the deletion journal.");
+    }
+
+    private void expungeLoop() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                List<Record> batch = new ArrayList<>();
+                batch.add(queue.take());
+                // Lets the sessions quitting meanwhile add their records to the batch.
+                TimeUnit.NANOSECONDS.sleep(batchDelay);
+                queue.drainTo(batch);
+                expunge(batch);
+            } catch (InterruptedException e) {
+                // The expunger runs for the life of the process.
+            } catch (RuntimeException e) {
+                System.err.println("Error expunging journaled messages.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Removes the messages of a batch of records from the store, then the records themselves.
+     */
+    private void expunge(List<Record> batch) {
+        List<Path> files = new ArrayList<>();
+        for (Record record : batch) {
+            record.files.forEach((file, uniqueId) -> {
+                try {
+                    if (uniqueId.equals(WireFormatCache.uniqueId(file))) files.add(file);
+                    else System.err.println("Not expunging " + file + ", which is another message now.");
+                } catch (NoSuchFileException e) {
+                    // Already removed, before the process stopped.
+                } catch (IOException e) {
+                    System.err.println("Could not check " + file + " before expunging it: " + e);
+                }
+            });
+        }
+
+        MessageStore.getInstance().expunge(files);
+        expunged.addAndGet(files.size());
+        epoch.incrementAndGet();
+        for (Record record : batch) {
+            pending.removeAll(record.files.keySet());
+            try {
+                Files.deleteIfExists(record.file);
+            } catch (IOException e) {
+                // Expunged again when the journal is next opened, which only finds the files gone.
+                System.err.println("Could not remove the journal record " + record.file + ": " + e);
+            }
+        }
+    }
+
+    private static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * A record of the journal, with the files it lists and their unique ids.
+     */
+    private static final class Record {
+
+        private final Path file;
+        private final Map<Path, String> files;
+
+        private Record(Path file, Map<Path, String> files) {
+            this.file = file;
+            this.files = files;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes deliveries durable in groups. Sessions hand in the files and directories written by a delivery and wait; a
+ * single committer thread collects the requests arriving within a short window (up to a maximum delay or batch size),
+ * forces each distinct path to disk once for the whole group, and then releases all the waiting sessions together.
+ * <p>
+ * Concurrent deliveries to the same mailbox share the synchronization of its directory, and the file system can
+ * commit the whole group in one journal transaction instead of one per message.
+ */
+public class GroupCommit {
+
+    private final long maxDelayNanos;
+    private final int maxBatch;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Creates a group committer and starts its thread.
+     *
+     * @param maxDelayMicros Maximum time the first request of a group waits for others to join, in microseconds.
+     * @param maxBatch       Maximum number of requests in a group.
+     */
+    public GroupCommit(long maxDelayMicros, int maxBatch) {
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.maxBatch = Math.max(maxBatch, 1);
+
+        Thread committer = new Thread(this::run, "group-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Creates a group committer configured with the {@code mail.store.sync.maxDelayMicros} (default 2000) and
+     * {@code mail.store.sync.maxBatch} (default 128) system properties.
+     *
+     * @return The configured group committer.
+     */
+    public static GroupCommit fromSystemProperties() {
+        return new GroupCommit(Long.getLong("mail.store.sync.maxDelayMicros", 2000),
+                Integer.getInteger("mail.store.sync.maxBatch", 128));
+    }
+
+    /**
+     * Waits until the given files and directories have been forced to disk.
+     *
+     * @param paths The files and directories written by a delivery.
+     * @throws IOException If any path of the group could not be synchronized.
+     */
+    public void await(Collection<Path> paths) throws IOException {
+        Request request = new Request(List.copyOf(paths));
+        queue.add(request);
+        try {
+            request.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the delivery to be durable", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not make the delivery durable", e.getCause());
+        }
+    }
+
+    private void run() {
+        List<Request> group = new ArrayList<>();
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                group.add(queue.take());
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (group.size() < maxBatch) {
+                    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    group.add(next);
+                }
+                commit(group);
+            } catch (InterruptedException e) {
+                // The committer runs for the life of the process.
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private void commit(List<Request> group) {
+        Set<Path> paths = new LinkedHashSet<>();
+        for (Request request : group) paths.addAll(request.paths);
+
+        IOException failure = null;
+        for (Path path : paths) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+
+        for (Request request : group) {
+            if (failure == null) request.done.complete(null);
+            else request.done.completeExceptionally(failure);
+        }
+    }
+
+    private static class Request {
+
+        private final List<Path> paths;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Request(List<Path> paths) {
+            this.paths = paths;
+        }
+    }
+}
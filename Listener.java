@@ -0,0 +1,171 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Accepts the connections of a blocking server on one or more acceptor threads. With several acceptors, each one
+ * listens on its own socket bound to the same port with {@code SO_REUSEPORT}, so the kernel spreads new connections
+ * across them instead of queueing them all behind a single {@code accept()} call, and each one starts its sessions
+ * with its own {@link SessionExecutor}, with an equal share of the session limit.
+ * <p>
+ * Connections are accepted through a {@link ServerSocketChannel}, so every accepted socket has a
+ * {@link java.nio.channels.SocketChannel} that sessions can send files to with
+ * {@link java.nio.channels.FileChannel#transferTo}, while still using its blocking streams for everything else.
+ * <p>
+ * The listener is configured with system properties, using the server name as a prefix (e.g. {@code smtp} or
+ * {@code pop}), which the {@link Reactor} reads as well:
+ * <ul>
+ *     <li>{@code <name>.acceptors}: number of acceptor threads (default 1). Several acceptors need
+ *     {@code SO_REUSEPORT}, available on Linux and the BSDs; elsewhere a single acceptor is used;</li>
+ *     <li>{@code <name>.backlog}: length of the queue of connections waiting to be accepted by each acceptor
+ *     (default 0, for the platform's default);</li>
+ *     <li>{@code <name>.logConnections}: {@code false} to stop printing every accepted connection (default
+ *     {@code true}).</li>
+ * </ul>
+ */
+public class Listener {
+
+    /**
+     * Handles the connections accepted by a listener.
+     */
+    public interface Handler {
+
+        /**
+         * Starts a session for a new connection, or refuses it. Called on the acceptor thread, so new connections
+         * wait in the accept queue while it blocks.
+         *
+         * @param socket   The accepted connection.
+         * @param executor The executor of the acceptor that accepted the connection.
+         */
+        void accepted(Socket socket, SessionExecutor executor);
+    }
+
+    private final String name;
+    private final int port;
+    private final int acceptors;
+    private final int backlog;
+    private final boolean logConnections;
+
+    /**
+     * Creates a listener.
+     *
+     * @param name           Name of the server, used as the property prefix of its executors and for thread names.
+     * @param port           The listening port.
+     * @param acceptors      Number of acceptor threads.
+     * @param backlog        Length of the accept queue of each acceptor, or 0 for the platform's default.
+     * @param logConnections true to print every accepted connection.
+     */
+    public Listener(String name, int port, int acceptors, int backlog, boolean logConnections) {
+        this.name = name;
+        this.port = port;
+        this.acceptors = acceptors > 1 && !supportsReusePort() ? 1 : Math.max(acceptors, 1);
+        this.backlog = backlog;
+        this.logConnections = logConnections;
+        if (acceptors > this.acceptors) {
+            System.err.println("SO_REUSEPORT is not available on this platform, using a single acceptor.");
+        }
+    }
+
+    /**
+     * Creates a listener configured from the system properties prefixed with the given server name.
+     *
+     * @param name Name of the server, used as the property prefix and for thread names.
+     * @param port The listening port.
+     * @return The configured listener.
+     */
+    public static Listener fromSystemProperties(String name, int port) {
+        return new Listener(name, port, Integer.getInteger(name + ".acceptors", 1),
+                Integer.getInteger(name + ".backlog", 0),
+                Boolean.parseBoolean(System.getProperty(name + ".logConnections", "true")));
+    }
+
+    /**
+     * Binds the listening sockets and accepts connections on every acceptor. The first acceptor runs on the calling
+     * thread; only returns if its listening socket fails.
+     *
+     * @param handler Starts a session for every accepted connection.
+     * @throws IOException In case of an exception creating the server sockets or accepting new connections.
+     */
+    public void serve(Handler handler) throws IOException {
+        ServerSocketChannel[] sockets = new ServerSocketChannel[acceptors];
+        SessionExecutor[] executors = new SessionExecutor[acceptors];
+        try {
+            for (int i = 0; i < acceptors; i++) {
+                sockets[i] = bindChannel(port, backlog, acceptors > 1);
+                executors[i] = acceptors == 1 ? SessionExecutor.fromSystemProperties(name)
+                        : SessionExecutor.fromSystemProperties(name, i, acceptors);
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel socket : sockets) if (socket != null) socket.close();
+            throw e;
+        }
+
+        for (SessionExecutor executor : executors) System.out.println("Running " + executor);
+        System.out.println("Waiting for connections on port " + sockets[0].socket().getLocalPort() + "...");
+        for (int i = 1; i < acceptors; i++) {
+            int acceptor = i;
+            Thread thread = new Thread(() -> acceptLoop(sockets[acceptor], executors[acceptor], handler),
+                    name + "-acceptor-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try (ServerSocketChannel socket = sockets[0]) {
+            accept(socket, executors[0], handler);
+        }
+    }
+
+    /**
+     * Binds a listening channel.
+     *
+     * @param port      The listening port.
+     * @param backlog   Length of the accept queue, or 0 for the platform's default.
+     * @param reusePort true to let other sockets bind the same port, so the kernel balances connections among them.
+     * @return The bound channel, in blocking mode.
+     * @throws IOException If the channel cannot be bound.
+     */
+    static ServerSocketChannel bindChannel(int port, int backlog, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(new InetSocketAddress(port), backlog);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if sockets can share a port with {@code SO_REUSEPORT} on this platform.
+     */
+    static boolean supportsReusePort() {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel socket, SessionExecutor executor, Handler handler) {
+        try (socket) {
+            accept(socket, executor, handler);
+        } catch (IOException e) {
+            System.err.println("Error accepting connections on port " + port + ".");
+            e.printStackTrace();
+        }
+    }
+
+    private void accept(ServerSocketChannel socket, SessionExecutor executor, Handler handler) throws IOException {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            Socket accepted = socket.accept().socket();
+            if (logConnections) System.out.println("Accepted a connection from " + accepted.getRemoteSocketAddress());
+            handler.accepted(accepted, executor);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Slows down password guessing in POP sessions. After {@code mail.auth.freeFailures} failed logins (default 3) for
+ * the same user from the same address, further attempts are refused until a delay has passed, starting at
+ * {@code mail.auth.failureDelayMillis} (default 1000, 0 to disable) and doubled after every further failure, up to five
+ * minutes. A refused attempt is answered right away, without checking the password, so it neither blocks the session
+ * thread nor costs a verification.
+ * <p>
+ * Every allowed attempt is counted as a failure before the password is checked, so concurrent attempts from several
+ * sessions cannot all get through while the first ones are still being verified. A successful login clears the
+ * failures, an attempt that could not check the password is taken back, and failures are forgotten five minutes after
+ * the last one.
+ */
+public class LoginThrottle {
+
+    private static final long MAX_DELAY = TimeUnit.MINUTES.toNanos(5);
+    private static final int CLEANUP_INTERVAL = 1024;
+
+    private static final LoginThrottle INSTANCE = new LoginThrottle(Integer.getInteger("mail.auth.freeFailures", 3),
+            Long.getLong("mail.auth.failureDelayMillis", 1000), TimeUnit.MILLISECONDS);
+
+    private final int freeFailures;
+    private final long delay;
+    private final AtomicInteger recorded = new AtomicInteger();
+    private final Map<String, Failures> failures = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a throttle.
+     *
+     * @param freeFailures Number of failures allowed before attempts are delayed.
+     * @param delay        Delay after the first failure past the free ones, or 0 to never delay attempts.
+     * @param unit         Unit of the delay.
+     */
+    public LoginThrottle(int freeFailures, long delay, TimeUnit unit) {
+        this.freeFailures = Math.max(freeFailures, 0);
+        this.delay = unit.toNanos(delay);
+    }
+
+    /**
+     * @return The throttle shared by all the sessions of this process.
+     */
+    public static LoginThrottle getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Decides whether a login may be attempted, and if so counts it as a failure until it is known to have succeeded,
+     * delaying the next attempts once the free failures are used up.
+     *
+     * @param address The address of the client.
+     * @param user    The user name given by the client.
+     * @return true if the password may be checked, false if the attempt must be refused.
+     */
+    public boolean allowed(InetAddress address, String user) {
+        if (delay <= 0) return true;
+        if (recorded.incrementAndGet() % CLEANUP_INTERVAL == 0) cleanup();
+
+        long now = System.nanoTime();
+        boolean[] allowed = {false};
+        failures.compute(key(address, user), (key, existing) -> {
+            // Failures older than the maximum delay are forgotten, even if the cleanup did not remove them yet.
+            Failures current = existing != null && now - existing.last <= MAX_DELAY ? existing : new Failures(now);
+            if (now - current.notBefore < 0) return current;
+            allowed[0] = true;
+            current.count++;
+            current.last = now;
+            delay(current);
+            return current;
+        });
+        return allowed[0];
+    }
+
+    /**
+     * Takes back an allowed attempt that could not check the password, so it does not count as a failure.
+     *
+     * @param address The address of the client.
+     * @param user    The user name given by the client.
+     */
+    public void cancelled(InetAddress address, String user) {
+        if (delay <= 0) return;
+        failures.computeIfPresent(key(address, user), (key, current) -> {
+            if (--current.count <= 0) return null;
+            delay(current);
+            return current;
+        });
+    }
+
+    /**
+     * Clears the failures of a user from an address, after a successful login.
+     *
+     * @param address The address of the client.
+     * @param user    The user name given by the client.
+     */
+    public void succeeded(InetAddress address, String user) {
+        if (!failures.isEmpty()) failures.remove(key(address, user));
+    }
+
+    /**
+     * Sets the end of the delay after the last failure, from the number of failures past the free ones.
+     */
+    private void delay(Failures current) {
+        int delayed = current.count - freeFailures;
+        if (delayed <= 0) {
+            current.notBefore = current.last;
+            return;
+        }
+        long wait = delay << Math.min(delayed - 1, 30);
+        current.notBefore = current.last + (wait > 0 ? Math.min(wait, MAX_DELAY) : MAX_DELAY);
+    }
+
+    /**
+     * Forgets the failures older than the maximum delay.
+     */
+    private void cleanup() {
+        long now = System.nanoTime();
+        for (String key : failures.keySet()) {
+            failures.computeIfPresent(key, (k, current) -> now - current.last > MAX_DELAY ? null : current);
+        }
+    }
+
+    private static String key(InetAddress address, String user) {
+        return address.getHostAddress() + " " + user;
+    }
+
+    /**
+     * Failed logins of one user from one address, counting the attempts still being checked. Only used inside
+     * {@link ConcurrentHashMap#compute} and its variants.
+     */
+    private static class Failures {
+
+        private int count = 0;
+        private long last;
+        private long notBefore;
+
+        private Failures(long now) {
+            this.last = now;
+            this.notBefore = now;
+        }
+    }
+}
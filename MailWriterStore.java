@@ -0,0 +1,29 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.MailWriter;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message store writing every message through {@link MailWriter}, using the shared mailbox handles of the
+ * {@link UserDirectory}. The size of the mailboxes is not known to this store, so it cannot be used with the
+ * {@link QuotaIndex}. A {@link MailWriter} cannot abandon a message, so an aborted message is dropped
+ * without flushing or closing its writer.
+ */
+public class MailWriterStore implements MessageStore {
+
+    @Override
+    public Writer open(List<String> recipients) throws IOException {
+        List<Mailbox> mailboxes = new ArrayList<>(recipients.size());
+        for (String recipient : recipients) {
+            Mailbox mailbox = UserDirectory.getInstance().lookup(recipient);
+            if (mailbox == null) throw new IOException("No mailbox for " + recipient);
+            mailboxes.add(mailbox);
+        }
+        return QuotaIndex.getInstance().track(recipients, new MailWriter(mailboxes));
+    }
+}
@@ -0,0 +1,287 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent index of the messages in every mailbox of the {@link SingleInstanceStore}, so that the number and total
+ * size of the messages in a mailbox are known without listing its directory and measuring every file.
+ * <p>
+ * The index of a mailbox is an append-only log in the index directory, named after the user: every delivery appends a
+ * record with the name and size of the new message, and every removal a record with the name of the removed message.
+ * The log is replayed the first time the mailbox is used, and the totals are then kept up to date in memory as records
+ * are appended. Each record also holds the modification time of the mailbox directory after the change, so a log that
+ * missed a change, e.g. because of a crash between linking a message and appending its record, is noticed when it is
+ * replayed, and rebuilt from the directory. The log is rewritten once removed messages outnumber the remaining ones.
+ */
+public class MailboxIndex {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MIN_COMPACTION_RECORDS = 64;
+
+    private final Path mailboxes;
+    private final Path dir;
+    private final ConcurrentHashMap<String, Log> logs = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an index.
+     *
+     * @param mailboxes The directory containing one subdirectory per mailbox.
+     * @param dir       The directory of the index files.
+     * @throws IOException If the index directory cannot be created.
+     */
+    public MailboxIndex(Path mailboxes, Path dir) throws IOException {
+        this.mailboxes = mailboxes;
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Records a message delivered to a mailbox. Must be called after the message file is in the mailbox directory.
+     *
+     * @param user The user name (email address) of the mailbox.
+     * @param name The name of the message file in the mailbox directory.
+     * @param size The size of the message in bytes.
+     */
+    public void added(String user, String name, long size) {
+        log(user).append(name, size);
+    }
+
+    /**
+     * Records messages removed from a mailbox. Must be called after the message files are removed.
+     *
+     * @param user  The user name (email address) of the mailbox.
+     * @param names The names of the removed message files.
+     */
+    public void removed(String user, List<String> names) {
+        if (!names.isEmpty()) log(user).remove(names);
+    }
+
+    /**
+     * @param user The user name (email address) of the mailbox.
+     * @return The number and total size of the messages in the mailbox.
+     * @throws IOException If the mailbox can neither be loaded from its index nor from its directory.
+     */
+    public Summary summary(String user) throws IOException {
+        return log(user).summary();
+    }
+
+    private Log log(String user) {
+        Log log = logs.get(user);
+        if (log != null) return log;
+        log = logs.putIfAbsent(user, new Log(user));
+        return log != null ? log : logs.get(user);
+    }
+
+    /**
+     * The number and total size of the messages in a mailbox, at a given generation of its index.
+     */
+    public static final class Summary {
+
+        private final int count;
+        private final long octets;
+        private final long generation;
+
+        private Summary(int count, long octets, long generation) {
+            this.count = count;
+            this.octets = octets;
+            this.generation = generation;
+        }
+
+        /**
+         * @return The number of messages in the mailbox.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return The total size of the messages in the mailbox, in bytes.
+         */
+        public long getOctets() {
+            return octets;
+        }
+
+        /**
+         * @return The number of changes made to the mailbox since the index was last built, so that two summaries
+         * with the same generation describe the same messages.
+         */
+        public long getGeneration() {
+            return generation;
+        }
+    }
+
+    /**
+     * The log of one mailbox, loaded the first time it is used.
+     */
+    private class Log {
+
+        private final String user;
+        private final Path file;
+        private final Map<String, Long> sizes = new HashMap<>();
+        private boolean loaded = false;
+        private long octets = 0;
+        private long generation = 0;
+        private int removedRecords = 0;
+
+        private Log(String user) {
+            this.user = user;
+            this.file = dir.resolve(user);
+        }
+
+        private synchronized Summary summary() throws IOException {
+            load();
+            return new Summary(sizes.size(), octets, generation);
+        }
+
+        private synchronized void append(String name, long size) {
+            try {
+                load();
+                // Already found in the directory, if the log was just rebuilt.
+                if (Long.valueOf(size).equals(sizes.get(name))) return;
+                Long replaced = sizes.put(name, size);
+                if (replaced != null) octets -= replaced;
+                octets += size;
+                write("+ " + directoryTime() + " " + size + " " + name + "\n");
+            } catch (IOException e) {
+                invalidate(e);
+            }
+        }
+
+        private synchronized void remove(List<String> names) {
+            try {
+                load();
+                long time = directoryTime();
+                StringBuilder records = new StringBuilder();
+                for (String name : names) {
+                    Long size = sizes.remove(name);
+                    if (size == null) continue;
+                    octets -= size;
+                    removedRecords++;
+                    records.append("- ").append(time).append(' ').append(name).append('\n');
+                }
+                if (removedRecords >= MIN_COMPACTION_RECORDS && removedRecords > sizes.size()) rewrite(time);
+                else write(records.toString());
+            } catch (IOException e) {
+                invalidate(e);
+            }
+        }
+
+        /**
+         * Replays the log, or rebuilds it from the mailbox directory if it is missing or out of date.
+         */
+        private void load() throws IOException {
+            if (loaded) return;
+            try {
+                replay();
+                loaded = true;
+            } catch (IOException e) {
+                sizes.clear();
+                octets = 0;
+                generation = 0;
+                removedRecords = 0;
+                throw e;
+            }
+        }
+
+        private void replay() throws IOException {
+            // A mailbox without a log or a directory has no messages.
+            long recordedTime = 0;
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] record = line.split(" ", line.startsWith("+") ? 4 : 3);
+                    recordedTime = Long.parseLong(record[1]);
+                    if (record[0].equals("+")) {
+                        long size = Long.parseLong(record[2]);
+                        Long replaced = sizes.put(record[3], size);
+                        octets += size - (replaced == null ? 0 : replaced);
+                    } else {
+                        Long size = sizes.remove(record[2]);
+                        if (size != null) octets -= size;
+                        removedRecords++;
+                    }
+                    generation++;
+                }
+            } catch (NoSuchFileException e) {
+                // Never indexed, or nothing was delivered to this mailbox yet.
+            } catch (RuntimeException e) {
+                // A record cut short by a crash.
+                recordedTime = -1;
+            }
+
+            // Read before the directory is listed, so a message linked meanwhile leaves the log out of date.
+            long time = directoryTime();
+            if (recordedTime != time) {
+                if (Files.exists(file)) System.err.println("The index of " + user + " is out of date, rebuilding it.");
+                sizes.clear();
+                octets = 0;
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(mailboxes.resolve(user))) {
+                    for (Path entry : entries) {
+                        long size = Files.size(entry);
+                        sizes.put(entry.getFileName().toString(), size);
+                        octets += size;
+                    }
+                } catch (NoSuchFileException e) {
+                    // Nothing was delivered to this mailbox yet.
+                }
+                rewrite(time);
+            }
+        }
+
+        /**
+         * Writes a log holding only the messages in the mailbox, and replaces the current one with it.
+         *
+         * @param time The modification time of the mailbox directory when the messages were last changed.
+         */
+        private void rewrite(long time) throws IOException {
+            Path temp = dir.resolve(user + TEMP_SUFFIX);
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+                    out.write("+ " + time + " " + entry.getValue() + " " + entry.getKey() + "\n");
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            removedRecords = 0;
+            generation++;
+        }
+
+        private void write(String records) throws IOException {
+            if (records.isEmpty()) return;
+            try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                out.write(records);
+            }
+            generation++;
+        }
+
+        /**
+         * Drops a log that could not be updated, so it is checked against the mailbox directory when next used.
+         */
+        private void invalidate(IOException e) {
+            System.err.println("Could not update the index of " + user + ": " + e);
+            logs.remove(user, this);
+        }
+
+        private long directoryTime() throws IOException {
+            try {
+                return Files.getLastModifiedTime(mailboxes.resolve(user)).to(TimeUnit.NANOSECONDS);
+            } catch (NoSuchFileException e) {
+                return 0;
+            }
+        }
+    }
+}
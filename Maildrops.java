@@ -0,0 +1,270 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.MailMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock manager for the maildrops of the POP sessions, which also shares the snapshots of their messages between the
+ * sessions of the same user.
+ * <p>
+ * A session locks the maildrop of its user once authenticated, and releases it when it ends. With the
+ * {@code pop.maildropLock} system property set to {@code exclusive} (the default), the lock is exclusive as RFC 1939
+ * (section 8) expects, and a second session of the same user is refused with the {@code [IN-USE]} response code of
+ * RFC 2449. With {@code shared}, any number of sessions can hold the lock at the same time, and a message removed by
+ * one of them can no longer be retrieved by the others. Either way, the messages tagged for deletion are removed at
+ * QUIT by one session of the maildrop at a time.
+ * <p>
+ * Every maildrop keeps the latest {@link Snapshot} of its messages while a session holds its lock, an immutable list
+ * of their files, with their sizes and unique ids computed as they are needed. Files are told apart by their identity,
+ * size and modification time rather than their name, since the name of a removed message can be reused by a new one.
+ * Sizes are given in wire format, as RETR reports them, so measuring a message means converting it; this is left to
+ * the first LIST or STAT that needs it, so a login costs the same whatever the size of the mailbox. A session whose mailbox lists the same messages reuses the snapshot;
+ * otherwise a new version is built from the previous one, keeping what was measured of the messages it still lists,
+ * and published with a compare-and-set, so sessions never wait for each other to get a snapshot.
+ */
+public class Maildrops {
+
+    private static final Maildrops INSTANCE = new Maildrops(
+            "shared".equals(System.getProperty("pop.maildropLock", "exclusive").toLowerCase(Locale.ROOT)));
+
+    private final boolean shared;
+    private final ConcurrentHashMap<String, Maildrop> maildrops = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a lock manager.
+     *
+     * @param shared true to let several sessions hold the lock of a maildrop, false to make it exclusive.
+     */
+    public Maildrops(boolean shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * @return The lock manager shared by all the sessions of this process.
+     */
+    public static Maildrops getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Locks the maildrop of a user.
+     *
+     * @param user The user name (email address) of the maildrop.
+     * @return The lock, to close when the session ends, or null if another session holds an exclusive lock.
+     */
+    public Lock lock(String user) {
+        Maildrop[] locked = new Maildrop[1];
+        maildrops.compute(user, (key, maildrop) -> {
+            if (maildrop == null) maildrop = new Maildrop();
+            if (shared || maildrop.sessions == 0) {
+                maildrop.sessions++;
+                locked[0] = maildrop;
+            }
+            return maildrop;
+        });
+        return locked[0] == null ? null : new Lock(user, locked[0]);
+    }
+
+    /**
+     * The lock of a session on a maildrop.
+     */
+    public final class Lock implements AutoCloseable {
+
+        private final String user;
+        private final Maildrop maildrop;
+        private boolean closed = false;
+
+        private Lock(String user, Maildrop maildrop) {
+            this.user = user;
+            this.maildrop = maildrop;
+        }
+
+        /**
+         * Gives the snapshot describing the messages of a mailbox just loaded, reusing the current one if it lists
+         * the same messages.
+         *
+         * @param messages The messages of the mailbox, in order.
+         * @return The snapshot of the messages.
+         */
+        public Snapshot snapshot(MailMessage[] messages) {
+            String[] keys = new String[messages.length];
+            for (int i = 0; i < messages.length; i++) keys[i] = key(messages[i]);
+
+            Snapshot current = maildrop.snapshot.get();
+            if (current != null && current.matches(keys)) return current;
+            Snapshot next = new Snapshot(current, keys, messages);
+            // A concurrent session may have published another version meanwhile, which is as recent as this one.
+            maildrop.snapshot.compareAndSet(current, next);
+            return next;
+        }
+
+        /**
+         * Removes the messages tagged for deletion, while no other session of the maildrop is doing the same.
+         *
+         * @param removal Removes the messages.
+         */
+        public void expunge(Runnable removal) {
+            synchronized (maildrop.expunging) {
+                removal.run();
+            }
+        }
+
+        /**
+         * Releases the lock, forgetting the maildrop once no session holds it. Can be called more than once.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            maildrops.computeIfPresent(user, (key, current) -> --current.sessions == 0 ? null : current);
+        }
+    }
+
+    /**
+     * Gives the key telling a message file apart from any other, or null if its attributes cannot be read, in which
+     * case nothing known of it is reused.
+     */
+    private static String key(MailMessage message) {
+        try {
+            return WireFormatCache.key(message.getFile().toPath());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * An immutable description of the messages of a maildrop, shared by the sessions that loaded the same messages.
+     */
+    public static final class Snapshot {
+
+        private final long version;
+        private final String[] keys;
+        private final long[] fileSizes;
+        private final long fileOctets;
+        // Computed when first needed; every session computes the same sizes and ids, so a race only repeats the work.
+        private final AtomicLongArray sizes;
+        private final String[] uniqueIds;
+        private volatile long octets = -1;
+        private final MailMessage[] messages;
+
+        private Snapshot(Snapshot previous, String[] keys, MailMessage[] messages) {
+            this.version = previous == null ? 1 : previous.version + 1;
+            this.keys = keys;
+            this.sizes = new AtomicLongArray(keys.length);
+            this.fileSizes = new long[keys.length];
+            this.uniqueIds = new String[keys.length];
+            this.messages = messages.clone();
+
+            Map<String, Integer> known = new HashMap<>();
+            if (previous != null) {
+                for (int i = 0; i < previous.keys.length; i++) {
+                    if (previous.keys[i] != null) known.put(previous.keys[i], i);
+                }
+            }
+            long fileTotal = 0;
+            for (int i = 0; i < keys.length; i++) {
+                Integer j = keys[i] == null ? null : known.get(keys[i]);
+                if (j != null) {
+                    sizes.set(i, previous.sizes.get(j));
+                    fileSizes[i] = previous.fileSizes[j];
+                    uniqueIds[i] = previous.uniqueIds[j];
+                } else {
+                    sizes.set(i, -1);
+                    fileSizes[i] = messages[i].getFileSize();
+                }
+                fileTotal += fileSizes[i];
+            }
+            this.fileOctets = fileTotal;
+        }
+
+        private boolean matches(String[] keys) {
+            for (String key : keys) if (key == null) return false;
+            return Arrays.equals(this.keys, keys);
+        }
+
+        /**
+         * @return The number of this version of the maildrop's snapshot, starting at 1.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Gives the size of a message, measuring it the first time it is needed.
+         *
+         * @param index The zero-based index of a message.
+         * @return The size of the message in bytes, in wire format as RETR reports it.
+         */
+        public long getSize(int index) {
+            long size = sizes.get(index);
+            if (size < 0) {
+                try {
+                    size = WireFormatCache.getInstance().octets(messages[index].getFile().toPath());
+                } catch (IOException e) {
+                    // RETR fails as well for a message that cannot be read, so any size will do.
+                    size = fileSizes[index];
+                }
+                sizes.set(index, size);
+            }
+            return size;
+        }
+
+        /**
+         * Gives the total size of the messages, measuring those not measured yet the first time it is needed.
+         *
+         * @return The total size of the messages in bytes, in wire format as RETR reports it.
+         */
+        public long getOctets() {
+            long total = octets;
+            if (total < 0) {
+                total = 0;
+                for (int i = 0; i < keys.length; i++) total += getSize(i);
+                octets = total;
+            }
+            return total;
+        }
+
+        /**
+         * @return The total size of the message files in bytes, as stored in the mailbox.
+         */
+        public long getFileOctets() {
+            return fileOctets;
+        }
+
+        /**
+         * @param index The zero-based index of a message.
+         * @return The unique id of the message, as given by UIDL.
+         * @throws IOException If the attributes of the message file cannot be read.
+         */
+        public String getUniqueId(int index) throws IOException {
+            String id = uniqueIds[index];
+            if (id == null) {
+                id = keys[index] != null ? WireFormatCache.uniqueId(keys[index])
+                        : WireFormatCache.uniqueId(messages[index].getFile().toPath());
+                uniqueIds[index] = id;
+            }
+            return id;
+        }
+    }
+
+    /**
+     * The lock state and the latest snapshot of one maildrop.
+     */
+    private static final class Maildrop {
+
+        private final Object expunging = new Object();
+        private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+        // Only changed inside ConcurrentHashMap#compute and its variants, which remove the maildrop once it is 0.
+        private int sessions = 0;
+    }
+}
@@ -0,0 +1,214 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage used by the servers to deliver messages into the recipients' mailboxes.
+ * <p>
+ * The implementation is selected with the {@code mail.store} system property: {@code mailwriter} (the default) writes
+ * through {@link ca.yorku.eecs3214.mail.mailbox.MailWriter}, while {@code single-instance} stores the content of a
+ * message once and links it into every recipient's mailbox directory under {@code mail.store.dir}, keeping a
+ * {@link MailboxIndex} of every mailbox.
+ * <p>
+ * With {@code mail.store.sync=group}, deliveries are forced to disk in groups by a {@link GroupCommit} before they are
+ * reported as complete. This is only supported by the {@code single-instance} store and by the spool, since the files
+ * written by {@link ca.yorku.eecs3214.mail.mailbox.MailWriter} are not known outside of it. For the same reason,
+ * {@code mail.quota} is only supported by the {@code single-instance} store.
+ * <p>
+ * When {@code mail.spool.dir} names a spool directory, messages are accepted as soon as they are saved in the
+ * {@link Spool}, and {@code mail.spool.workers} threads (default 2) deliver them to the selected store in the
+ * background. A failed delivery is attempted again after {@code mail.spool.retrySeconds} (default 30), doubled after
+ * every attempt, up to {@code mail.spool.maxAttempts} attempts (default 10). The depth of the spool and the throughput
+ * of its workers are printed every {@code mail.spool.statusSeconds} (default 60, 0 to disable).
+ * <p>
+ * When {@code mail.journal.dir} names a journal directory, the messages removed by POP sessions are recorded in the
+ * {@link DeletionJournal}, and removed from the store by {@link #expunge} in the background.
+ */
+public interface MessageStore {
+
+    /**
+     * Starts the delivery of a message. The message is delivered when the returned writer is closed.
+     *
+     * @param recipients The users (email addresses) the message is delivered to.
+     * @return A writer receiving the content of the message.
+     * @throws IOException If the delivery cannot be started.
+     */
+    Writer open(List<String> recipients) throws IOException;
+
+    /**
+     * Abandons a message started with {@link #open}, or with {@link Relay#open}, without delivering it, such as one
+     * over the size limit. Writers that cannot abandon a message are dropped without being flushed or closed, since
+     * closing them is what delivers it.
+     *
+     * @param writer The writer receiving the content of the message, or null.
+     */
+    static void abort(Writer writer) {
+        if (writer instanceof Abortable) ((Abortable) writer).abort();
+    }
+
+    /**
+     * Implemented by the writers that can abandon the message they receive.
+     */
+    interface Abortable {
+
+        /**
+         * Abandons the message: the content written so far is discarded and the writer is released, but nothing is
+         * delivered. Does nothing if the writer is already closed.
+         */
+        void abort();
+    }
+
+    /**
+     * Delivers a message saved in a file, and reports the recipients it could not be delivered to. The message is
+     * first delivered to all the recipients together, and only if that fails, to each recipient separately, so that a
+     * single failing mailbox does not fail the delivery to the others. A recipient may receive the message twice if
+     * the delivery to all the recipients failed half-way.
+     *
+     * @param recipients The users (email addresses) the message is delivered to.
+     * @param content    The file containing the content of the message.
+     * @return The recipients the message could not be delivered to; empty if it was delivered to all of them.
+     */
+    default List<String> deliver(List<String> recipients, Path content) {
+        try {
+            copy(content, open(recipients));
+            return List.of();
+        } catch (IOException e) {
+            System.err.println("Could not deliver a message to " + recipients + ": " + e);
+            if (recipients.size() == 1) return recipients;
+        }
+
+        List<String> failed = new ArrayList<>();
+        for (String recipient : recipients) {
+            try {
+                copy(content, open(List.of(recipient)));
+            } catch (IOException e) {
+                failed.add(recipient);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Copies the content of a message to a writer opened by {@link #open}. The writer is only closed, which delivers
+     * the message, once the whole content has been written.
+     */
+    private static void copy(Path content, Writer out) throws IOException {
+        char[] buffer = new char[8192];
+        try (Reader in = Files.newBufferedReader(content, StandardCharsets.ISO_8859_1)) {
+            int count;
+            while ((count = in.read(buffer)) >= 0) out.write(buffer, 0, count);
+            out.flush();
+            out.close();
+        }
+    }
+
+    /**
+     * Removes the messages tagged for deletion from a mailbox, reclaiming any storage they no longer share with other
+     * mailboxes.
+     *
+     * @param mailbox A mailbox with its messages loaded.
+     */
+    default void deleteMessagesTaggedForDeletion(Mailbox mailbox) {
+        mailbox.deleteMessagesTaggedForDeletion();
+    }
+
+    /**
+     * Removes messages from their mailboxes by the path of their files, for messages removed by a session that has
+     * ended since, such as those of the {@link DeletionJournal}. Files already gone are skipped.
+     *
+     * @param files The files of the messages, as stored in the mailboxes.
+     */
+    default void expunge(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("Could not remove " + file + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Measures the space used by a mailbox, to start tracking it in the {@link QuotaIndex}.
+     *
+     * @param user The user name (email address) of the mailbox.
+     * @return The size of the messages in the mailbox in bytes, or -1 if the store cannot tell without loading it.
+     */
+    default long mailboxSize(String user) {
+        return -1;
+    }
+
+    /**
+     * Gives the number and total size of the messages in a mailbox from the store's own index, so a POP session can
+     * answer STAT without going through every message.
+     *
+     * @param user The user name (email address) of the mailbox.
+     * @return The summary of the mailbox, or null if the store does not index its mailboxes.
+     */
+    default MailboxIndex.Summary summary(String user) {
+        return null;
+    }
+
+    /**
+     * @return The store used by all the sessions of this process.
+     */
+    static MessageStore getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    final class Holder {
+
+        private static final MessageStore INSTANCE = create();
+
+        private Holder() {
+        }
+
+        private static MessageStore create() {
+            boolean sync = "group".equals(System.getProperty("mail.store.sync", "none"));
+            GroupCommit groupCommit = sync ? GroupCommit.fromSystemProperties() : null;
+            String spool = System.getProperty("mail.spool.dir");
+            if (spool == null) return createStore(groupCommit);
+
+            // Deliveries from the spool can be attempted again, so they do not need to be forced to disk.
+            SpoolingStore store = new SpoolingStore(Paths.get(spool), createStore(null),
+                    Integer.getInteger("mail.spool.workers", 2), Integer.getInteger("mail.spool.maxAttempts", 10),
+                    Long.getLong("mail.spool.retrySeconds", 30), groupCommit);
+            long status = Long.getLong("mail.spool.statusSeconds", 60);
+            if (status > 0) store.getSpool().reportEvery(status, TimeUnit.SECONDS);
+            System.out.println("Using the " + store.getSpool());
+            return store;
+        }
+
+        private static MessageStore createStore(GroupCommit groupCommit) {
+            String type = System.getProperty("mail.store", "mailwriter");
+            switch (type) {
+                case "mailwriter":
+                    // The mailboxes written by MailWriter cannot be measured, so their usage would start from zero.
+                    if (Long.getLong("mail.quota", 0) > 0) {
+                        throw new RuntimeException("mail.quota requires mail.store=single-instance.");
+                    }
+                    if (groupCommit != null) {
+                        System.err.println("The mailwriter store does not support mail.store.sync, ignoring.");
+                    }
+                    return new MailWriterStore();
+                case "single-instance":
+                    String dir = System.getProperty("mail.store.dir");
+                    if (dir == null) throw new RuntimeException("mail.store.dir must name the mailbox directory.");
+                    return new SingleInstanceStore(Paths.get(dir), groupCommit);
+                default:
+                    throw new RuntimeException("Unknown message store " + type + ".");
+            }
+        }
+    }
+}
@@ -5,18 +5,55 @@ package ca.yorku.eecs3214.mail.net;
 import ca.yorku.eecs3214.mail.mailbox.MailMessage;
 import ca.yorku.eecs3214.mail.mailbox.Mailbox;
 
+import javax.net.ssl.SSLSocket;
 import java.io.*;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-public class MyPOPServer extends Thread {
+public class MyPOPServer implements Runnable {
 
     private final Socket socket;
-    private final BufferedReader socketIn;
-    private final PrintWriter socketOut;
+    private BufferedReader socketIn;
+    private PrintWriter socketOut;
+    // The stream beneath socketOut, to send messages without a character encoding.
+    private OutputStream socketStream;
+    private boolean secure = false;
+    private final AdmissionControl.Permit permit;
     private boolean auth = false;
     private String user = null;
     private Mailbox mail = null;
+    // The messages of the mailbox, as loaded at PASS
+    private MailMessage[] messages = new MailMessage[0];
+    // The lock on the maildrop, held from PASS to the end of the session, and
+    // the shared sizes and unique ids of the messages
+    private Maildrops.Lock lock = null;
+    private Maildrops.Snapshot snapshot = null;
+    // Running totals for STAT: the undeleted messages, and the size of those
+    // tagged for deletion, taken off the total of the snapshot
+    private int undeletedCount = 0;
+    private long deletedOctets = 0;
+    private TimingWheel.Timeout autologout;
+    private volatile boolean timedOut = false;
+
+    /**
+     * Inactivity autologout timer in seconds, at least 10 minutes as required by
+     * RFC 1939, section 3. Set with the pop.timeout.autologout system property.
+     */
+    static final long AUTOLOGOUT_TIMEOUT = Long.getLong("pop.timeout.autologout", 600);
+
+    /**
+     * Size in characters of the buffer replies are written to. Replies are sent
+     * once a command has been handled, or whenever the buffer fills up, so a
+     * long multi-line reply costs a few large writes instead of one per line.
+     * Set with the pop.responseBufferSize system property.
+     */
+    static final int RESPONSE_BUFFER_SIZE = Integer.getInteger("pop.responseBufferSize", 16384);
 
 
     /**
@@ -27,11 +64,28 @@ public class MyPOPServer extends Thread {
      *                     information.
      */
     public MyPOPServer(Socket socket) throws IOException {
+        this(socket, null);
+    }
+
+    /**
+     * Initializes an object responsible for a connection to an individual client,
+     * subject to rate limits.
+     *
+     * @param socket The socket associated to the accepted connection.
+     * @param permit The admission of the connection, used to limit the rate of
+     *               commands and released when the connection ends; null if the
+     *               client is not limited.
+     * @throws IOException If there is an error attempting to retrieve the socket's
+     *                     information.
+     */
+    public MyPOPServer(Socket socket, AdmissionControl.Permit permit) throws IOException {
 
 
         this.socket = socket;
+        this.permit = permit;
         this.socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.socketOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        this.socketStream = socket.getOutputStream();
+        this.socketOut = replyWriter(socketStream);
 
     }
 
@@ -46,6 +100,9 @@ public class MyPOPServer extends Thread {
      */
     @Override
     public void run() {
+        // Close the connection if the client stays silent for too long
+        autologout = TimingWheel.shared().schedule(this::timeOut, AUTOLOGOUT_TIMEOUT, TimeUnit.SECONDS);
+
         // Try-with-resources statement to ensure the socket is closed automatically
         try (this.socket) {
           // Send a welcome message to the client
@@ -53,11 +110,21 @@ public class MyPOPServer extends Thread {
       
           String line;
           // Loop to read commands from the client until a null line is received (indicating end of stream)
-          while ((line = socketIn.readLine()) != null) {
+          while ((line = readCommand()) != null) {
 
 
             // Skip empty lines
             if (line.isEmpty()) continue;
+
+            // Any command restarts the autologout timer
+            autologout.reset(AUTOLOGOUT_TIMEOUT, TimeUnit.SECONDS);
+
+            // Close the connection of a client sending commands faster than allowed
+            if (permit != null && !permit.tryCommand()) {
+              socketOut.println("-ERR Too many commands, closing connection\r");
+              socketOut.flush();
+              return;
+            }
             
       
             // Split the received line into arguments (command and parameters)
@@ -88,6 +155,14 @@ public class MyPOPServer extends Thread {
                 // Call the handleRETR method to retrieve an email
                 handleRETR(arg);
                 break;
+              case "TOP":
+                // Send the headers and the first lines of a message
+                handleTOP(arg);
+                break;
+              case "UIDL":
+                // List the unique ids of the messages
+                handleUIDL(arg);
+                break;
               case "DELE":
                 // Call the handleDELE method to delete an email
                 handleDELE(arg);
@@ -100,9 +175,18 @@ public class MyPOPServer extends Thread {
                 // Call the handleNOOP method to do nothing (but send an OK response)
                 handleNOOP();
                 break;
+              case "CAPA":
+                // List the optional commands supported by the server
+                handleCAPA();
+                break;
+              case "STLS":
+                // Switch the connection to TLS before authentication
+                handleSTLS();
+                break;
               case "QUIT":
                 // Call the handleQUIT method to terminate the connection
                 handleQUIT();
+                socketOut.flush();
                 return; // Exit the loop after QUIT command
               default:
                 // Send an error message for unknown commands
@@ -110,13 +194,100 @@ public class MyPOPServer extends Thread {
             }
           }
         } catch (IOException e) {
-          // Print error message and stack trace if an IOException occurs
-          System.err.println("Error in client's connection handling.\r");
-          e.printStackTrace();
+          if (timedOut) {
+            // The autologout timer closed the socket under the blocked read
+            System.err.println("Closed a timed out connection from " + socket.getRemoteSocketAddress());
+          } else {
+            // Print error message and stack trace if an IOException occurs
+            System.err.println("Error in client's connection handling.\r");
+            e.printStackTrace();
+          }
+        } finally {
+          // Stop the autologout timer and release the connection slots held by this client
+          autologout.cancel();
+          if (lock != null) lock.close();
+          if (permit != null) permit.close();
+        }
+      }
+
+      // Sends the replies buffered so far, then waits for the next command.
+      private String readCommand() throws IOException {
+        socketOut.flush();
+        return socketIn.readLine();
+      }
+
+      // Creates the writer replies are buffered in, without flushing every line.
+      private static PrintWriter replyWriter(OutputStream out) {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(out), RESPONSE_BUFFER_SIZE), false);
+      }
+
+      // Autologout: runs on the timing wheel thread and closes the socket, which
+      // makes the blocked read in the session's thread fail. Messages tagged for
+      // deletion are not removed (RFC 1939, section 3).
+      private void timeOut() {
+        timedOut = true;
+        try {
+          socket.close();
+        } catch (IOException e) {
+          System.err.println("Error closing a timed out connection.");
+        }
+      }
+
+      // Refuses the connection, sending a single error before closing it.
+      private void reject(String reply) {
+        try (this.socket) {
+          socketOut.println(reply + "\r");
+          socketOut.flush();
+        } catch (IOException e) {
+          System.err.println("Error closing a refused connection.");
+        } finally {
+          if (permit != null) permit.close();
         }
       }
 
+      // Lists the capabilities of the server (RFC 2449). STLS is only offered
+      // before authentication, on a connection that is not secured yet.
+      private void handleCAPA() {
+        socketOut.println("+OK Capability list follows\r");
+        socketOut.println("USER\r");
+        socketOut.println("TOP\r");
+        socketOut.println("UIDL\r");
+        socketOut.println("RESP-CODES\r");
+        socketOut.println("AUTH-RESP-CODE\r");
+        if (!auth && !secure && Tls.getInstance() != null) socketOut.println("STLS\r");
+        socketOut.println(".\r");
+      }
+
+      // Secures the connection with TLS (RFC 2595, section 4). Anything the
+      // client sent after STLS was read in plaintext, and is dropped along with
+      // the old reader. The user must be given again on the secured connection.
+      private void handleSTLS() throws IOException {
+        if (Tls.getInstance() == null) {
+          socketOut.println("-ERR TLS not available\r");
+          return;
+        }
+        if (auth || secure) {
+          socketOut.println("-ERR Command not permitted\r");
+          return;
+        }
+
+        socketOut.println("+OK Begin TLS negotiation\r");
+        socketOut.flush();
+        SSLSocket secured = Tls.getInstance().secure(socket);
+        socketIn = new BufferedReader(new InputStreamReader(secured.getInputStream()));
+        socketStream = secured.getOutputStream();
+        socketOut = replyWriter(socketStream);
+        secure = true;
+        user = null;
+      }
+
       private void handleUSER(String[] arg) {
+        // The user cannot be changed once authenticated
+        if (auth) {
+          socketOut.println("-ERR Command not permitted\r");
+          return;
+        }
+
         // Check if the USER command has the correct number of arguments (username)
         if (arg.length != 2) {
           socketOut.println("-ERR Syntax error in USER command\r");
@@ -133,26 +304,59 @@ public class MyPOPServer extends Thread {
 
 
     private void handlePASS(String[] arg) {
+  // A second PASS would replace the mailbox and the lock already held
+  if (auth) {
+    socketOut.println("-ERR Command not permitted\r");
+    return;
+  }
+
   // Check if the PASS command has the correct number of arg (password)
   if (arg.length != 2) {
     socketOut.println("-ERR Syntax error in PASS command\r");
     return;
   }
 
-  // Check if the provided username is valid (presumably using a Mailbox class)
-  if (Mailbox.isValidUser(user)) {
+  // Check if the provided username is valid, using the shared user directory
+  if (UserDirectory.getInstance().isValidUser(user)) {
+    // Refuse the attempt right away after too many failures, without checking
+    // the password; an allowed attempt counts as a failure until it succeeds
+    LoginThrottle throttle = LoginThrottle.getInstance();
+    if (!throttle.allowed(socket.getInetAddress(), user)) {
+      socketOut.println("-ERR [AUTH] Too many failed logins, try again later\r");
+      return;
+    }
+    if (!verify(arg[1])) return;
+
+    // Lock the maildrop before loading it, so no other session changes it
+    // in the meantime; another session may hold it already (RFC 1939, section 8)
+    lock = Maildrops.getInstance().lock(user);
+    if (lock == null) {
+      // The password was right, so the attempt is not held against the user
+      throttle.cancelled(socket.getInetAddress(), user);
+      socketOut.println("-ERR [IN-USE] Maildrop already locked\r");
+      return;
+    }
+
     // Create a Mailbox object for the current user
     mail = new Mailbox(user);
+    long epoch = DeletionJournal.getInstance() == null ? 0 : DeletionJournal.getInstance().getEpoch();
 
     try {
       // Attempt to load messages using the provided password
       mail.loadMessages(arg[1]);
       // Authentication successful
       auth = true;
+      throttle.succeeded(socket.getInetAddress(), user);
+      snapshotMessages(epoch);
+      countTotals();
+      QuotaIndex.getInstance().loaded(user, snapshot.getFileOctets());
       socketOut.println("+OK POP3 server ready\r");
     } catch (Mailbox.MailboxNotAuthenticatedException e) {
-      // Password is invalid
-      socketOut.println("-ERR invalid password\r");
+      // Password is invalid, so the maildrop is unlocked again
+      lock.close();
+      lock = null;
+      mail = null;
+      socketOut.println("-ERR [AUTH] invalid password\r");
     }
   } else {
     // Username not found
@@ -160,6 +364,22 @@ public class MyPOPServer extends Thread {
   }
 }
 
+  // Checks the password with the shared authenticator, sending an error if it
+  // is wrong. An attempt that could not check it is taken back from the
+  // throttle, which counted it as a failure already.
+  private boolean verify(String password) {
+    try {
+      if (Authenticator.getInstance().verify(user, password)) return true;
+      socketOut.println("-ERR [AUTH] invalid password\r");
+    } catch (IOException e) {
+      LoginThrottle.getInstance().cancelled(socket.getInetAddress(), user);
+      System.err.println("Error checking the password of " + user + ".");
+      e.printStackTrace();
+      socketOut.println("-ERR [SYS/TEMP] Authentication unavailable, try again later\r");
+    }
+    return false;
+  }
+
 private void handleSTAT() {
     // Check if the user is authenticated before processing the command
     if (!auth) {
@@ -168,14 +388,29 @@ private void handleSTAT() {
       return;
     }
   
-    // Get the number of messages in the mailbox (excluding deleted messages)
-    int count = mail.size(false);  // Call to Mailbox class method
-  
-    // Get the total size of all undeleted messages in the mailbox
-    long size = mail.getTotalUndeletedFileSize(false);  // Call to Mailbox class method
-  
-    // Construct a positive response with the number of messages and their total size
-    socketOut.println("+OK " + count + " " + size + "\r");
+    // Construct a positive response from the running totals of the undeleted messages;
+    // the first STAT of the snapshot measures its messages
+    socketOut.println("+OK " + undeletedCount + " " + (snapshot.getOctets() - deletedOctets) + "\r");
+  }
+
+  // Takes a snapshot of the messages of the mailbox just loaded, so commands
+  // find them by number without going back to the mailbox. Their sizes and
+  // unique ids come from the maildrop's shared snapshot, only measured for the
+  // messages delivered since another session last loaded the mailbox. Messages
+  // removed by an earlier session but not expunged yet are left out.
+  private void snapshotMessages(long epoch) {
+    messages = new MailMessage[mail.size(true)];
+    for (int i = 0; i < messages.length; i++) messages[i] = mail.getMailMessage(i + 1);
+    if (DeletionJournal.getInstance() != null) messages = DeletionJournal.getInstance().visible(messages, epoch);
+    snapshot = lock.snapshot(messages);
+  }
+
+  // Sets the running totals of the undeleted messages of a mailbox just loaded.
+  // Their size comes from the snapshot, whose sizes are in wire format like
+  // those reported by RETR, and only measured once a command needs them.
+  private void countTotals() {
+    undeletedCount = messages.length;
+    deletedOctets = 0;
   }
 
 
@@ -191,14 +426,14 @@ private void handleSTAT() {
     // Handle different argument cases:
     if (arg.length == 1) { // LIST command without a message number
       // Send a positive response indicating the number of messages
-      socketOut.println("+OK " + mail.size(false) + " messages:\r");
+      socketOut.println("+OK " + undeletedCount + " messages:\r");
   
       // List information for each undeleted message
-      for (int i = 1; i <= mail.size(true); i++) {
+      for (int i = 1; i <= messages.length; i++) {
 
 
-        MailMessage comm = mail.getMailMessage(i);
-        if (!comm.isDeleted())  socketOut.println(i + " " + comm.getFileSize() + "\r");
+        MailMessage comm = messages[i - 1];
+        if (!comm.isDeleted())  socketOut.println(i + " " + snapshot.getSize(i - 1) + "\r");
         
       }
       socketOut.println(".\r"); // Termination marker
@@ -206,12 +441,12 @@ private void handleSTAT() {
       int index = Integer.parseInt(arg[1]); // Extract message index
   
       // Check if the message index is valid
-      if (index > mail.size(true) || index < 1) {
+      if (index > messages.length || index < 1) {
         socketOut.println("-ERR No such message\r");
         return;
       }
   
-      MailMessage comm = mail.getMailMessage(index);
+      MailMessage comm = messages[index - 1];
       // Check if the message is deleted
       if ( comm.isDeleted()) {
         socketOut.println("-ERR No such message\r");
@@ -219,14 +454,14 @@ private void handleSTAT() {
       }
   
       // Send information for the specified message
-      socketOut.println("+OK " + index + " " + comm.getFileSize() + "\r");
+      socketOut.println("+OK " + index + " " + snapshot.getSize(index - 1) + "\r");
     }
   }
 
 
   
 
-  private void handleRETR(String[] arg) {
+  private void handleRETR(String[] arg) throws IOException {
     // Check if the user is authenticated
     if (!auth) {
       socketOut.println("-ERR Authenticate first\r");
@@ -237,11 +472,11 @@ private void handleSTAT() {
     int index = Integer.parseInt(arg[1]);
   
     // Check for valid message index
-    if (index > mail.size(true) || index < 1) {
+    if (index > messages.length || index < 1) {
       socketOut.println("-ERR No such message\r");
     } else {
       // Retrieve the MailMessage object for the specified index
-      MailMessage comm = mail.getMailMessage(index);
+      MailMessage comm = messages[index - 1];
   
       // Check if the message is deleted
       if (comm.isDeleted()) {
@@ -249,25 +484,130 @@ private void handleSTAT() {
         return;
       }
   
-      // Send a positive response with the message size
-      socketOut.println("+OK " + comm.getFileSize() + " octets\r");
-  
-      // Read the message content from the file
-      File content = comm.getFile();
-      try (BufferedReader reader = new BufferedReader(new FileReader(content))) {
-        String line;
-        // Read the message content line by line and send it to the client
-        while ((line = reader.readLine()) != null) {
-          socketOut.println(line);
-        }
-        // Send termination marker
-        socketOut.println(".\r");
-      } catch (IOException e) {
-        // Handle IOException and send an error message
-        socketOut.println("-ERR Failed to read message content\r");
+      // Find the message in wire format, dot-stuffed and terminated already
+      WireFormatCache.WireMessage wire = wireMessage(comm);
+      if (wire == null) return;
+
+      // Send a positive response with the message size, then the message as it is
+      try {
+        socketOut.println("+OK " + wire.getOctets() + " octets\r");
+        sendRange(wire.getChannel(), wire.getPosition(), wire.getLength());
+      } finally {
+        wire.release();
+      }
+    }
+  }
+
+  // Sends the headers and the first lines of the body of a message (RFC 1939,
+  // section 7). The index of its wire format copy tells where to stop, so only
+  // that part of the copy is read.
+  private void handleTOP(String[] arg) throws IOException {
+    // Check if the user is authenticated
+    if (!auth) {
+      socketOut.println("-ERR Authenticate first\r");
+      return;
+    }
+
+    // Extract the message index and the number of lines
+    int index;
+    int lines;
+    try {
+      index = Integer.parseInt(arg[1]);
+      lines = Integer.parseInt(arg[2]);
+    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      socketOut.println("-ERR Syntax error in TOP command\r");
+      return;
+    }
+    if (lines < 0) {
+      socketOut.println("-ERR Syntax error in TOP command\r");
+      return;
+    }
+
+    // Check for a valid, undeleted message
+    if (index > messages.length || index < 1 || messages[index - 1].isDeleted()) {
+      socketOut.println("-ERR No such message\r");
+      return;
+    }
+
+    WireFormatCache.WireMessage wire = wireMessage(messages[index - 1]);
+    if (wire == null) return;
+
+    try {
+      long length = wire.topLength(lines);
+      socketOut.println("+OK Top of message follows\r");
+      sendRange(wire.getChannel(), wire.getPosition(), length);
+    } finally {
+      wire.release();
+    }
+    socketOut.println(".\r");
+  }
+
+  // Lists the unique ids of the messages (RFC 1939, section 7). The ids come
+  // from the attributes of the message files, which are not opened, and are
+  // kept in the maildrop's snapshot for the next sessions.
+  private void handleUIDL(String[] arg) throws IOException {
+    // Check if the user is authenticated
+    if (!auth) {
+      socketOut.println("-ERR Authenticate first\r");
+      return;
+    }
+
+    if (arg.length == 1) { // UIDL command without a message number
+      socketOut.println("+OK\r");
+      for (int i = 1; i <= messages.length; i++) {
+        MailMessage comm = messages[i - 1];
+        if (!comm.isDeleted()) socketOut.println(i + " " + snapshot.getUniqueId(i - 1) + "\r");
       }
+      socketOut.println(".\r"); // Termination marker
+      return;
+    }
+
+    // UIDL command with a specific message number
+    int index = Integer.parseInt(arg[1]);
+    if (index > messages.length || index < 1 || messages[index - 1].isDeleted()) {
+      socketOut.println("-ERR No such message\r");
+      return;
+    }
+    socketOut.println("+OK " + index + " " + snapshot.getUniqueId(index - 1) + "\r");
+  }
+
+  // Finds a message in wire format, sending an error if it cannot be read. The
+  // message must be released once sent.
+  private WireFormatCache.WireMessage wireMessage(MailMessage comm) {
+    try {
+      return WireFormatCache.getInstance().get(comm.getFile().toPath());
+    } catch (IOException e) {
+      // Handle IOException and send an error message
+      socketOut.println("-ERR Failed to read message content\r");
+      return null;
     }
   }
+
+  // Sends length bytes of a file from the given position, after the replies
+  // already written. The file is shared with other sessions, so it is only
+  // read at explicit positions. On a plain connection, FileChannel.transferTo
+  // has the kernel copy it from the page cache straight to the socket; on a
+  // secured one, it goes through the TLS stream.
+  private void sendRange(FileChannel in, long position, long length) throws IOException {
+    socketOut.flush();
+    long end = position + length;
+    SocketChannel channel = secure ? null : socket.getChannel();
+    if (channel == null) {
+      ByteBuffer chunk = ByteBuffer.allocate(8192);
+      while (position < end) {
+        chunk.clear().limit((int) Math.min(chunk.capacity(), end - position));
+        int count = in.read(chunk, position);
+        if (count < 0) break;
+        socketStream.write(chunk.array(), 0, count);
+        position += count;
+      }
+      socketStream.flush();
+      return;
+    }
+    while (position < end) position += in.transferTo(position, end - position, channel);
+  }
+
+
   
 
 
@@ -283,20 +623,23 @@ private void handleDELE(String[] arg) {
   int index = Integer.parseInt(arg[1]);
 
   // Check for valid message index
-  if (index > mail.size(true) || index < 1) {
+  if (index > messages.length || index < 1) {
     socketOut.println("-ERR No such message\r");
     return;
   }
 
   // Check if the message is already deleted
-  if (mail.getMailMessage(index).isDeleted()) {
+  if (messages[index - 1].isDeleted()) {
     socketOut.println("-ERR Message already deleted\r");
     return;
   }
 
   try {
     // Mark the message for deletion
-    mail.getMailMessage(index).tagForDeletion();
+    MailMessage comm = messages[index - 1];
+    comm.tagForDeletion();
+    undeletedCount--;
+    deletedOctets += snapshot.getSize(index - 1);
     // Send a positive response
     socketOut.println("+OK Message deleted\r");
   } catch (Exception e) {
@@ -315,10 +658,14 @@ public void handleRSET() {
       return;
     }
   
-    // Undelete all messages
-    for (int i = 1; i <= mail.size(true); i++) {
-      mail.getMailMessage(i).undelete();
+    // Undelete all messages, adding them back to the running totals
+    for (int i = 1; i <= messages.length; i++) {
+      MailMessage comm = messages[i - 1];
+      if (!comm.isDeleted()) continue;
+      comm.undelete();
+      undeletedCount++;
     }
+    deletedOctets = 0;
   
     // Send positive response
     socketOut.println("+OK\r");
@@ -334,17 +681,49 @@ public void handleNOOP() {
 
 // Terminates the POP3 session and closes the connection.
 public void handleQUIT() {
-    // Purge deleted messages
-    if (this.mail != null) mail.deleteMessagesTaggedForDeletion();
+    // Purge deleted messages, one session of the maildrop at a time, then unlock it
+    if (lock != null) {
+      lock.expunge(this::expunge);
+      lock.close();
+    }
     // Send positive response indicating server termination
     socketOut.println("+OK POP3 server signing off\r");
   }
 
+// Removes the messages tagged for deletion. With a deletion journal, they are
+// only recorded as removed, and unlinked from the store in the background.
+private void expunge() {
+    QuotaIndex.getInstance().removing(user, mail);
+    DeletionJournal journal = DeletionJournal.getInstance();
+    if (journal != null) {
+      try {
+        Map<Path, String> removed = new LinkedHashMap<>();
+        for (int i = 0; i < messages.length; i++) {
+          if (messages[i].isDeleted()) removed.put(messages[i].getFile().toPath(), snapshot.getUniqueId(i));
+        }
+        journal.delete(removed);
+        return;
+      } catch (IOException e) {
+        System.err.println("Could not journal the messages removed by " + user + ", removing them now.");
+        e.printStackTrace();
+      }
+    }
+    MessageStore.getInstance().deleteMessagesTaggedForDeletion(mail);
+  }
+
     /**
      * Main process for the POP3 server. Handles the argument parsing and
      * creates a listening server socket. Repeatedly accepts new connections
      * from individual clients, creating a new server instance that handles
-     * communication with that client in a separate thread.
+     * communication with that client in a separate thread. The type of thread
+     * and the session limit are configured through the {@code pop.*} system
+     * properties described in {@link SessionExecutor}, and the number of
+     * acceptor threads and the listen backlog through those described in
+     * {@link Listener}. Setting
+     * {@code pop.engine=nio} uses the non-blocking {@link Reactor} engine
+     * instead. Connections and command rates are limited as described in
+     * {@link AdmissionControl}, and removed messages can be journaled as
+     * described in {@link DeletionJournal}.
      *
      * @param args The command-line arguments.
      * @throws IOException In case of an exception creating the server socket or
@@ -357,23 +736,30 @@ public void handleQUIT() {
                     "This application must be executed with exactly one argument, the listening port.");
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]))) {
-            serverSocket.setReuseAddress(true);
-
-            System.out.println("Waiting for connections on port " + serverSocket.getLocalPort() + "...");
-            // noinspection InfiniteLoopStatement
-            while (true) {
-                Socket socket = serverSocket.accept();
-                System.out.println("Accepted a connection from " + socket.getRemoteSocketAddress());
-                try {
-                    MyPOPServer handler = new MyPOPServer(socket);
-                    handler.start();
-                } catch (IOException e) {
-                    System.err.println("Error setting up an individual client's handler.");
-                    e.printStackTrace();
-                }
-            }
+        AdmissionControl admission = AdmissionControl.fromSystemProperties("pop");
+        // Opened now, so a store that cannot be used, such as one that cannot enforce mail.quota, stops the server
+        MessageStore.getInstance();
+        // Opened now, so the records left by a previous process are expunged right away
+        if (DeletionJournal.getInstance() != null) System.out.println("Using the " + DeletionJournal.getInstance());
+
+        if ("nio".equalsIgnoreCase(System.getProperty("pop.engine"))) {
+            Reactor.fromSystemProperties("pop", () -> new PopReactorSession(admission))
+                    .serve(Integer.parseInt(args[0]));
+            return;
         }
+
+        Listener.fromSystemProperties("pop", Integer.parseInt(args[0])).serve((socket, executor) -> {
+            AdmissionControl.Permit permit = admission.admit(socket.getInetAddress());
+            try {
+                MyPOPServer handler = new MyPOPServer(socket, permit);
+                if (permit == null) handler.reject("-ERR Too many connections, try again later");
+                else if (!executor.submit(handler)) handler.reject("-ERR Too many sessions, try again later");
+            } catch (IOException e) {
+                System.err.println("Error setting up an individual client's handler.");
+                e.printStackTrace();
+                if (permit != null) permit.close();
+            }
+        });
     }
 }
 //last version of the code
\ No newline at end of file
@@ -1,36 +1,81 @@
 package ca.yorku.eecs3214.mail.net;
 
-import ca.yorku.eecs3214.mail.mailbox.MailWriter;
-import ca.yorku.eecs3214.mail.mailbox.Mailbox;
-
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class MySMTPServer implements Runnable {
+
+    private final Closeable socket;
+    private final SocketAddress peer;
+    private final boolean lmtp;
+    private BufferedInputStream socketIn;
+    private BufferedOutputStream socketOut;
+    private boolean secure = false;
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private final SmtpCommand command = new SmtpCommand();
+    private final byte[] digits = new byte[20];
+    private final byte[] dataBytes = new byte[DATA_CHUNK_SIZE];
+    private final char[] dataChars = new char[DATA_CHUNK_SIZE];
+    private final AdmissionControl.Permit permit;
+    private Writer mailWriter;
+    private Path lmtpContent;
+    private String sender;
+    private List<String> reciver;
+    private long declaredSize = -1;
+    private String body;
+    private long receivedSize = 0;
+    private TimingWheel.Timeout idleTimeout;
+    private TimingWheel.Timeout transactionTimeout;
+    private volatile boolean timedOut = false;
+
+    /**
+     * Largest message accepted, in bytes, advertised with the SIZE extension (RFC 1870). Set with the
+     * {@code smtp.maxMessageSize} system property.
+     */
+    static final long MAX_MESSAGE_SIZE = Long.getLong("smtp.maxMessageSize", 64L * 1024 * 1024);
+
+    private static final int DATA_CHUNK_SIZE = 8192;
+
+    /**
+     * Longest command line accepted, without its terminator. RFC 5321, section 4.5.3.1.4 allows 512 octets, and
+     * extensions such as SIZE and BODY add to that.
+     */
+    private static final int MAX_LINE_LENGTH = 1024;
 
-public class MySMTPServer extends Thread {
+    private static final String HOST_NAME = lookUpHostName();
 
-    private final Socket socket;
-    private final BufferedReader socketIn;
-    private final PrintWriter socketOut;
-    private MailWriter mailWriter;
-    private List<Mailbox> reciver;
+    private static final byte[] OCTETS_RECEIVED_PREFIX = "250 ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OCTETS_RECEIVED_SUFFIX = " octets received\r\n".getBytes(StandardCharsets.US_ASCII);
 
-    private static final String HELO = "HELO";
-    private static final String EHLO = "EHLO";
-    private static final String MAIL = "MAIL";
-    private static final String RCPT = "RCPT";
-    private static final String DATA = "DATA";
-    private static final String RSET = "RSET";
-    private static final String VRFY = "VRFY";
-    private static final String NOOP = "NOOP";
-    private static final String QUIT = "QUIT";
+    /*
+     * Timeouts in seconds, following RFC 5321, section 4.5.3.2. The greeting timeout applies to the first command,
+     * the command timeout to every other command, and the data block timeout to every read of message content. The
+     * transaction timeout limits the whole time from MAIL to the end of the message, so that a client trickling data
+     * cannot hold the session forever. Each can be set with the smtp.timeout.* system property of the same name.
+     */
+    static final long GREETING_TIMEOUT = Long.getLong("smtp.timeout.greeting", 300);
+    static final long COMMAND_TIMEOUT = Long.getLong("smtp.timeout.command", 300);
+    static final long DATA_BLOCK_TIMEOUT = Long.getLong("smtp.timeout.dataBlock", 180);
+    static final long TRANSACTION_TIMEOUT = Long.getLong("smtp.timeout.transaction", 1800);
 
     private State state;
-    private enum State { INIT, HELO, MAIL, RCPT, QUIT }
+    enum State { INIT, HELO, MAIL, RCPT, QUIT }
 
     /**
      * Initializes an object responsible for a connection to an individual client.
@@ -39,9 +84,42 @@ public class MySMTPServer extends Thread {
      * @throws IOException If there is an error attempting to retrieve the socket's information.
      */
     public MySMTPServer(Socket socket) throws IOException {
+        this(socket, null);
+    }
+
+    /**
+     * Initializes an object responsible for a connection to an individual client, subject to rate limits.
+     *
+     * @param socket The socket associated to the accepted connection.
+     * @param permit The admission of the connection, used to limit the rate of commands and messages, and released
+     *               when the connection ends; null if the client is not limited.
+     * @throws IOException If there is an error attempting to retrieve the socket's information.
+     */
+    public MySMTPServer(Socket socket, AdmissionControl.Permit permit) throws IOException {
+        this(socket, socket.getRemoteSocketAddress(), socket.getInputStream(), socket.getOutputStream(), permit,
+                false);
+    }
+
+    /**
+     * Initializes an object responsible for an LMTP connection (RFC 2033), accepted on a TCP or Unix domain socket.
+     * LMTP sessions are not subject to rate limits, since their clients are trusted mail transfer agents.
+     *
+     * @param channel The channel associated to the accepted connection, in blocking mode.
+     * @throws IOException If there is an error attempting to retrieve the channel's information.
+     */
+    public MySMTPServer(SocketChannel channel) throws IOException {
+        this(channel, channel.getRemoteAddress(), Channels.newInputStream(channel), Channels.newOutputStream(channel),
+                null, true);
+    }
+
+    private MySMTPServer(Closeable socket, SocketAddress peer, InputStream in, OutputStream out,
+                         AdmissionControl.Permit permit, boolean lmtp) {
         this.socket = socket;
-        this.socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.socketOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        this.peer = peer;
+        this.lmtp = lmtp;
+        this.permit = permit;
+        this.socketIn = new BufferedInputStream(in);
+        this.socketOut = new BufferedOutputStream(out);
 
 
         this.state = State.INIT;
@@ -57,32 +135,116 @@ public class MySMTPServer extends Thread {
      */
     @Override
     public void run() {
+        idleTimeout = TimingWheel.shared().schedule(this::timeOut, GREETING_TIMEOUT, TimeUnit.SECONDS);
         try (this.socket) {
-            answer("220 " + getHostName() + " SMTP Ready");
+            answer(lmtp ? SmtpReplies.LMTP_READY : SmtpReplies.READY);
+            socketOut.flush();
 
-            String line;
-            while ((line = socketIn.readLine()) != null) {
+            int length;
+            while ((length = readLine()) >= 0) {
 
-                if (line.isEmpty()) continue;
+                if (length == 0) continue;
 
-                handleRequest(line);
+                if (permit != null && !permit.tryCommand()) {
+                    answer(SmtpReplies.TOO_MANY_COMMANDS);
+                    break;
+                }
+
+                if (length > line.length) answer(SmtpReplies.LINE_TOO_LONG);
+                else handleRequest(length);
 
                 if (this.state == State.QUIT) break;
+
+                idleTimeout.reset(COMMAND_TIMEOUT, TimeUnit.SECONDS);
+
+                // Replies to a group of pipelined commands are sent together, once no more commands are waiting
+                // (RFC 2920, section 3.2).
+                if (socketIn.available() == 0) socketOut.flush();
             }
+            socketOut.flush();
 
         } catch (IOException e) {
-            System.err.println("Error in client's connection handling.");
+            if (timedOut) {
+                System.err.println("Closed a timed out connection from " + peer);
+            } else {
+                System.err.println("Error in client's connection handling.");
 
-            e.printStackTrace();
+                e.printStackTrace();
+            }
+        } finally {
+            idleTimeout.cancel();
+            if (transactionTimeout != null) transactionTimeout.cancel();
+            if (permit != null) permit.close();
+            // A message still in progress when the connection ends is never completed.
+            abortMessage();
         }
     }
 
     /**
-     * Retrieves the name of the current host. Used in the response of commands like HELO and EHLO.
+     * Closes the connection of a client that stayed silent for too long. Runs on the timing wheel thread; closing the
+     * socket makes the blocked read in the session's thread fail.
+     */
+    private void timeOut() {
+        timedOut = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing a timed out connection.");
+        }
+    }
+
+    /**
+     * Refuses the connection, sending a single reply before closing it.
+     *
+     * @param reply The reply explaining why the connection is refused.
+     */
+    private void reject(byte[] reply) {
+        try (this.socket) {
+            answer(reply);
+            socketOut.flush();
+        } catch (IOException e) {
+            System.err.println("Error closing a refused connection.");
+        } finally {
+            if (permit != null) permit.close();
+        }
+    }
+
+    /**
+     * Reads a command line from the client into the line buffer, without its terminator. The line is kept as bytes,
+     * and parsed in place by {@link SmtpCommand}. A line too long for the buffer is read until its end, but only its
+     * beginning is kept.
+     *
+     * @return The length of the line, a length larger than the buffer if the line was too long, or -1 if the
+     * connection was closed.
+     * @throws IOException If there is an error reading from the socket.
+     */
+    private int readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = socketIn.read()) != '\n') {
+            if (b < 0) {
+                if (length == 0) return -1;
+                break;
+            }
+            if (length < line.length) line[length] = (byte) b;
+            if (length <= line.length) length++;
+        }
+
+        if (length > 0 && length <= line.length && line[length - 1] == '\r') length--;
+        return length;
+    }
+
+    /**
+     * Retrieves the name of the current host. Used in the response of commands like HELO and EHLO. The name is looked
+     * up once, when the server starts, since the lookup may query the DNS or even run a process.
      *
      * @return A string corresponding to the name of the current host.
      */
-    private static String getHostName() {
+    static String getHostName() {
+        return HOST_NAME;
+    }
+
+    private static String lookUpHostName() {
         try {
             return InetAddress.getLocalHost().getHostName();
         }
@@ -98,198 +260,467 @@ public class MySMTPServer extends Thread {
 
 
 
-    private void handleEhloCommand(String arg) {
+    private void handleEhloCommand() throws IOException {
         if (state != State.INIT) {
-            answer("503 Bad sequence of commands");
+            answer(SmtpReplies.BAD_SEQUENCE);
             return;
         }
 
-        if (arg == null) {
-            answer("501 Syntax error in parameters or arguments");
+        if (!command.hasArgument()) {
+            answer(SmtpReplies.SYNTAX_ERROR);
             return;
         }
 
         state = State.HELO;
-        answer("250 " + getHostName());
+        answer(canStartTls() ? SmtpReplies.EHLO_STARTTLS : SmtpReplies.EHLO);
     }
 
-    private void handleHeloCommand(String arg) {
-        if (state != State.INIT) {
-            answer("503 Bad sequence of commands");
+    /**
+     * @return true if STARTTLS is offered: TLS is configured, and the session is neither secured yet nor LMTP.
+     */
+    private boolean canStartTls() {
+        return !secure && !lmtp && socket instanceof Socket && Tls.getInstance() != null;
+    }
+
+    /**
+     * Secures the connection with TLS (RFC 3207). The session starts over once the handshake is complete, so the
+     * client must greet the server again.
+     */
+    private void handleStartTlsCommand() throws IOException {
+        if (command.hasArgument()) {
+            answer(SmtpReplies.SYNTAX_ERROR);
             return;
         }
 
-        if (arg == null) {
-            answer("501 Syntax error in parameters or arguments");
+        if (!canStartTls()) {
+            answer(secure ? SmtpReplies.BAD_SEQUENCE : SmtpReplies.NOT_IMPLEMENTED);
             return;
         }
 
-        state = State.HELO;
+        if (state != State.INIT && state != State.HELO) {
+            answer(SmtpReplies.BAD_SEQUENCE);
+            return;
+        }
 
-        answer("250 " + getHostName());
+        answer(SmtpReplies.READY_TO_START_TLS);
+        socketOut.flush();
+        SSLSocket secured = Tls.getInstance().secure((Socket) socket);
+        // Commands read ahead with the plaintext streams are dropped along with them (RFC 3207, section 4.2).
+        socketIn = new BufferedInputStream(secured.getInputStream());
+        socketOut = new BufferedOutputStream(secured.getOutputStream());
+        secure = true;
+        endTransaction();
+        state = State.INIT;
     }
 
- 
-    private boolean formatt(String arg, String prefix) {
-        String[] parsing = arg.split(":");
+    private void handleHeloCommand() throws IOException {
+        if (state != State.INIT) {
+            answer(SmtpReplies.BAD_SEQUENCE);
+            return;
+        }
 
-        return parsing.length > 1 && parsing[0].equalsIgnoreCase(prefix)  && parsing[1].charAt(0) == '<'   && parsing[1].charAt(parsing[1].length() - 1) == '>';
+        if (!command.hasArgument()) {
+            answer(SmtpReplies.SYNTAX_ERROR);
+            return;
+        }
+
+        state = State.HELO;
+
+        answer(SmtpReplies.HELO);
     }
 
-    private void handleRcptCommand(String arg) {
+    private void handleRcptCommand() throws IOException {
         if (state != State.MAIL && state != State.RCPT) {
-            answer("503 Bad sequence of commands");
+            answer(SmtpReplies.BAD_SEQUENCE);
             return;
         }
 
-        if (arg == null || !arg.toLowerCase().startsWith("to:")) {
-            answer("501 Syntax error in parameters or arguments");
+        if (!command.parsePath("TO") || command.hasParameters()) {
+            answer(SmtpReplies.SYNTAX_ERROR);
             return;
         }
 
-        if (!formatt(arg, "TO")) {
-            answer("501 Syntax error in parameters or arguments");
+        String recipient = command.path();
+        boolean relayed = isRelayed(recipient);
+
+        if (!relayed && !UserDirectory.getInstance().isValidUser(recipient)) {
+            answer(SmtpReplies.NO_SUCH_USER);
             return;
         }
 
-        String recipient = arg.substring(3).trim();
-        recipient = recipient.substring(1, recipient.length() - 1);
+        // Refused before the content is received, using the size declared in MAIL if any.
+        if (!relayed && !QuotaIndex.getInstance().accepts(recipient, declaredSize)) {
+            answer(SmtpReplies.MAILBOX_FULL);
+            return;
+        }
 
-        if (Mailbox.isValidUser(recipient)) {
-            state = State.RCPT;
-            reciver.add(new Mailbox(recipient));
-            System.out.println(reciver.size());
-            answer("250 OK");
-        } 
-        else   answer("550 No such user here");
-        
+        state = State.RCPT;
+        reciver.add(recipient);
+        answer(SmtpReplies.OK);
     }
 
-    private void handleMailCommand(String arg) {
+    private void handleMailCommand() throws IOException {
         if (state != State.HELO) {
-            answer("503 Bad sequence of commands");
+            answer(SmtpReplies.BAD_SEQUENCE);
+            return;
+        }
+
+        // ESMTP parameters, such as SIZE, follow the closing bracket of the path.
+        if (!command.parsePath("FROM")) {
+            answer(SmtpReplies.SYNTAX_ERROR);
+            return;
+        }
+        String from = command.path();
+
+        // Kept for the relay, which must declare the same body type to the next server.
+        String type = null;
+        if (command.findParameter("BODY")) {
+            if (command.valueEquals("BINARYMIME")) type = "BINARYMIME";
+            else if (command.valueEquals("8BITMIME")) type = "8BITMIME";
+            else if (!command.valueEquals("7BIT")) {
+                answer(SmtpReplies.SYNTAX_ERROR);
+                return;
+            }
+        }
+
+        try {
+            declaredSize = command.findParameter("SIZE") ? command.numericValue() : -1;
+        } catch (NumberFormatException e) {
+            answer(SmtpReplies.SYNTAX_ERROR);
             return;
         }
 
-        if (arg == null) {
-            answer("501 Syntax error in parameters or arguments");
+        if (declaredSize > MAX_MESSAGE_SIZE) {
+            answer(SmtpReplies.SIZE_EXCEEDED);
             return;
         }
 
-        if (formatt(arg, "FROM")) {
-            this.state = State.MAIL;
-            answer("250 OK");
+        if (permit != null && !permit.tryMessage()) {
+            answer(SmtpReplies.TOO_MANY_MESSAGES);
+            state = State.QUIT;
+            return;
         }
-         else  answer("501 Syntax error in parameters or arguments");
+
+        body = type;
+        transactionTimeout = TimingWheel.shared().schedule(this::timeOut, TRANSACTION_TIMEOUT, TimeUnit.SECONDS);
+        this.sender = from;
+        this.state = State.MAIL;
+        answer(SmtpReplies.OK);
 
     }
 
 
-    private void handleDataCommand() {
-        if (state != State.RCPT) {
-            answer("503 Bad sequence of commands");
+    private void handleDataCommand() throws IOException {
+        // DATA cannot be mixed with BDAT, and cannot carry binary content (RFC 3030, section 3).
+        if (state != State.RCPT || mailWriter != null || "BINARYMIME".equals(body)) {
+            answer(SmtpReplies.BAD_SEQUENCE);
             return;
         }
 
-        answer("354 Start mail input");
+        // Once the client is told to send the message, it will, so the message must be read whatever happens.
+        try {
+            mailWriter = openMessage();
+        } catch (IOException e) {
+            answer(SmtpReplies.ABORTED);
+            return;
+        }
+
+        answer(SmtpReplies.START_MAIL_INPUT);
+        socketOut.flush();
 
         try {
-            mailWriter = new MailWriter(reciver);
-            StringBuilder strbild = new StringBuilder();
-            String line;
-            while (!(line = socketIn.readLine()).equals(".")) {
-                strbild.append(line).append("\r\n");
+            receivedSize = 0;
+            receivedSize = transferContent(new SmtpDataInputStream(socketIn), -1);
+            finishMessage();
+        } catch (IOException e) {
+            answerForMessage(SmtpReplies.ABORTED);
+            endTransaction();
+        }
+    }
+
+    private void handleBdatCommand() throws IOException {
+        long size = command.chunkSize();
+
+        // Without a valid size there is no way to tell where the chunk ends, so the session cannot continue.
+        if (size < 0) {
+            answer(SmtpReplies.SYNTAX_ERROR);
+            state = State.QUIT;
+            return;
+        }
+        boolean last = command.isLastChunk();
+
+        // The chunk is always sent by the client, so it must be read even if it is refused.
+        if (state != State.RCPT) {
+            transferContent(socketIn, size);
+            answer(SmtpReplies.BAD_SEQUENCE);
+            return;
+        }
+
+        try {
+            if (mailWriter == null) {
+                mailWriter = openMessage();
+                receivedSize = 0;
             }
-            char[] charbuf = strbild.toString().toCharArray();
-            mailWriter.write(charbuf, 0, charbuf.length);
-            mailWriter.flush();
-            mailWriter.close();
-            reciver = new ArrayList<>();
-
-            state = State.HELO;
-            answer("250 OK");
+            receivedSize = transferContent(socketIn, size);
+            if (last) {
+                finishMessage();
+            } else if (receivedSize > MAX_MESSAGE_SIZE) {
+                // The message is abandoned at once, so the remaining chunks are refused as out of sequence.
+                answer(SmtpReplies.SIZE_EXCEEDED);
+                endTransaction();
+            } else {
+                answerOctetsReceived(size);
+            }
+        } catch (EOFException e) {
+            throw e;
         } catch (IOException e) {
-            answer("451 Requested action aborted: error in processing");
+            // The rest of the chunk may not have been read, so the session cannot continue.
+            abortMessage();
+            if (last) answerForMessage(SmtpReplies.ABORTED);
+            else answer(SmtpReplies.ABORTED);
+            state = State.QUIT;
         }
     }
 
-    private void handleRsetCommand() {
+    /**
+     * Copies message content to the mail writer in fixed-size chunks, through buffers reused for the whole session, so
+     * memory use does not depend on the message size. Bytes are mapped one-to-one to characters, so 8-bit and binary
+     * content reaches the mailbox unchanged. Content past {@link #MAX_MESSAGE_SIZE}, or received while there is no
+     * message in progress, is read and discarded.
+     *
+     * @param content Stream with the message content.
+     * @param length  Number of bytes to copy, or -1 to copy until the end of the stream.
+     * @return The total number of bytes received for the current message, including this content.
+     * @throws IOException If there is an error reading the content or writing it to the mailboxes.
+     */
+    private long transferContent(InputStream content, long length) throws IOException {
+        long total = mailWriter == null ? 0 : receivedSize;
+        long remaining = length < 0 ? Long.MAX_VALUE : length;
+        while (remaining > 0) {
+            idleTimeout.reset(DATA_BLOCK_TIMEOUT, TimeUnit.SECONDS);
+            int count = content.read(dataBytes, 0, (int) Math.min(dataBytes.length, remaining));
+            if (count < 0) {
+                if (length < 0) break;
+                throw new EOFException("Connection closed during BDAT");
+            }
+            remaining -= count;
+            total += count;
+            if (mailWriter == null || total > MAX_MESSAGE_SIZE) continue;
+
+            for (int i = 0; i < count; i++) dataChars[i] = (char) (dataBytes[i] & 0xff);
+            mailWriter.write(dataChars, 0, count);
+        }
+        return total;
+    }
 
+    /**
+     * Completes the delivery of the message in progress and resets the transaction.
+     *
+     * @throws IOException If there is an error writing the message to the mailboxes.
+     */
+    private void finishMessage() throws IOException {
+        // Closing the writer delivers the message, so a message over the limit is abandoned instead.
+        if (receivedSize > MAX_MESSAGE_SIZE) {
+            answerForMessage(SmtpReplies.SIZE_EXCEEDED);
+            endTransaction();
+            return;
+        }
+
+        mailWriter.flush();
+        mailWriter.close();
+        mailWriter = null;
+
+        if (lmtp) {
+            // One reply for every recipient, in the order they were given (RFC 2033, section 4.2).
+            List<String> failed = MessageStore.getInstance().deliver(reciver, lmtpContent);
+            for (String recipient : reciver) answer(failed.contains(recipient) ? SmtpReplies.ABORTED : SmtpReplies.OK);
+        } else {
+            answer(SmtpReplies.OK);
+        }
+        endTransaction();
+    }
+
+    /**
+     * Starts receiving the content of a message. SMTP messages are written to the message store as they are
+     * received, while LMTP messages are saved to a temporary file first, so their delivery can be attempted, and
+     * reported, separately for each recipient.
+     *
+     * @return The writer receiving the content of the message.
+     * @throws IOException If the message cannot be stored.
+     */
+    private Writer openMessage() throws IOException {
+        if (!lmtp) {
+            Relay relay = Relay.getInstance();
+            return relay == null ? MessageStore.getInstance().open(reciver) : relay.open(sender, body, reciver);
+        }
+
+        lmtpContent = Files.createTempFile("lmtp-", ".msg");
+        return Files.newBufferedWriter(lmtpContent, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Abandons the message in progress, if any, without delivering it.
+     */
+    private void abortMessage() {
+        if (lmtp) discardLmtpContent();
+        else MessageStore.abort(mailWriter);
         mailWriter = null;
+    }
+
+    /**
+     * Removes the temporary file of the LMTP message in progress, if any.
+     */
+    private void discardLmtpContent() {
+        if (lmtpContent == null) return;
+        try {
+            if (mailWriter != null) mailWriter.close();
+            Files.deleteIfExists(lmtpContent);
+        } catch (IOException e) {
+            System.err.println("Could not remove " + lmtpContent + ".");
+        }
+        lmtpContent = null;
+    }
+
+    /**
+     * @param recipient An email address.
+     * @return true if messages to this address are accepted for relaying. LMTP only delivers to local mailboxes.
+     */
+    private boolean isRelayed(String recipient) {
+        Relay relay = Relay.getInstance();
+        return !lmtp && relay != null && relay.isRelayed(recipient);
+    }
+
+    /**
+     * Sends the reply to the end of a message: once in SMTP, and once for every recipient in LMTP.
+     *
+     * @param reply The reply to send.
+     * @throws IOException If there is an error sending the reply.
+     */
+    private void answerForMessage(byte[] reply) throws IOException {
+        for (int i = lmtp ? reciver.size() : 1; i > 0; i--) answer(reply);
+    }
+
+    private void handleRsetCommand() throws IOException {
+
+        endTransaction();
+        answer(SmtpReplies.OK);
+    }
+
+    /**
+     * Clears the state of the current mail transaction, if any, abandoning a message that was not completed.
+     */
+    private void endTransaction() {
+        abortMessage();
+        sender = null;
         this.reciver = new ArrayList<>();
+        declaredSize = -1;
+        body = null;
+        if (transactionTimeout != null) transactionTimeout.cancel();
+        transactionTimeout = null;
         state = State.HELO;
-        answer("250 OK");
     }
 
-    private void handleVrfyCommand(String arg) {
+    private void handleVrfyCommand() throws IOException {
 
 
-        if (arg == null || !arg.contains("@")) {
-            answer("501 Syntax error in parameters or arguments");
+        if (!command.argumentContains('@')) {
+            answer(SmtpReplies.SYNTAX_ERROR);
             return;
         }
 
-        if (Mailbox.isValidUser(arg))  answer("250 OK");
-        else   answer("550 No such user here");
+        if (UserDirectory.getInstance().isValidUser(command.argument()))  answer(SmtpReplies.OK);
+        else   answer(SmtpReplies.NO_SUCH_USER);
 
     }
 
-    private void handleNoopCommand() {
-        answer("250 OK");
+    private void handleNoopCommand() throws IOException {
+        answer(SmtpReplies.OK);
     }
 
-    private void handleQuitCommand() {
-        answer("221 " + getHostName() + " Service closing transmission channel");
+    private void handleQuitCommand() throws IOException {
+        answer(SmtpReplies.CLOSING);
         state = State.QUIT;
     }
 
 
-    private void handleRequest(String request) {
-
-        String[] parsing = request.split("\\s+", 2);
-        String command = parsing[0].toUpperCase();
-        String arg = parsing.length > 1 ? parsing[1] : null;
+    /**
+     * Handles the command line in the line buffer. The verb is matched without decoding the line, and only the
+     * arguments a command needs as strings are decoded.
+     *
+     * @param length Length of the line in the buffer.
+     * @throws IOException If there is an error sending the reply.
+     */
+    private void handleRequest(int length) throws IOException {
 
         try {
-            switch (command) {
-                case HELO:
-                handleHeloCommand(arg);
+            int verb = command.parse(line, length);
+            switch (verb) {
+                case SmtpCommand.HELO:
+                if (lmtp) answer(SmtpReplies.NOT_IMPLEMENTED);
+                else handleHeloCommand();
                     break;
-                case EHLO:
-                handleEhloCommand(arg);
+                case SmtpCommand.EHLO:
+                case SmtpCommand.LHLO:
+                // LMTP clients greet with LHLO instead of HELO or EHLO (RFC 2033, section 4.1).
+                if (lmtp != (verb == SmtpCommand.LHLO)) answer(SmtpReplies.NOT_IMPLEMENTED);
+                else handleEhloCommand();
                     break;
-                case MAIL:
-                handleMailCommand(arg);
+                case SmtpCommand.MAIL:
+                handleMailCommand();
                     break;
-                case RCPT:
-                handleRcptCommand(arg);
+                case SmtpCommand.RCPT:
+                handleRcptCommand();
                     break;
-                case DATA:
+                case SmtpCommand.DATA:
                 handleDataCommand();
                     break;
-                case RSET:
+                case SmtpCommand.BDAT:
+                handleBdatCommand();
+                    break;
+                case SmtpCommand.RSET:
                 handleRsetCommand();
                     break;
-                case VRFY:
-                handleVrfyCommand(arg);
+                case SmtpCommand.VRFY:
+                handleVrfyCommand();
                     break;
-                case NOOP:
+                case SmtpCommand.NOOP:
                 handleNoopCommand();
                     break;
-                case QUIT:
+                case SmtpCommand.QUIT:
                 handleQuitCommand();
                     break;
+                case SmtpCommand.STARTTLS:
+                handleStartTlsCommand();
+                    break;
                 default:
-                    answer("502 Command not implemented");
+                    answer(SmtpReplies.NOT_IMPLEMENTED);
                     break;
             }
-        } catch (Exception e) {
+        } catch (RuntimeException e) {
             e.printStackTrace();
         }
     }
 
-    private void answer(String answer) {
-        socketOut.println(answer + "\r");
+    private void answer(byte[] reply) throws IOException {
+        socketOut.write(reply);
+    }
+
+    /**
+     * Sends the reply to an intermediate BDAT chunk, writing the size without building a string.
+     *
+     * @param size The size of the chunk received.
+     * @throws IOException If there is an error sending the reply.
+     */
+    private void answerOctetsReceived(long size) throws IOException {
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + size % 10);
+            size /= 10;
+        } while (size > 0);
+
+        socketOut.write(OCTETS_RECEIVED_PREFIX);
+        socketOut.write(digits, start, digits.length - start);
+        socketOut.write(OCTETS_RECEIVED_SUFFIX);
     }
 
 
@@ -298,7 +729,15 @@ public class MySMTPServer extends Thread {
     /**
      * Main process for the SMTP server. Handles the argument parsing and creates a listening server socket. Repeatedly
      * accepts new connections from individual clients, creating a new server instance that handles communication with
-     * that client in a separate thread.
+     * that client in a separate thread. The type of thread and the session limit are configured through the
+     * {@code smtp.*} system properties described in {@link SessionExecutor}, and the number of acceptor threads and
+     * the listen backlog through those described in {@link Listener}. Setting {@code smtp.engine=nio} uses the
+     * non-blocking {@link Reactor} engine instead. Connections and request rates are limited as described in
+     * {@link AdmissionControl}.
+     * <p>
+     * Setting {@code lmtp.port} or {@code lmtp.socket} (the path of a Unix domain socket) also accepts LMTP
+     * connections, for local delivery from another mail transfer agent. LMTP sessions always run on the blocking
+     * engine, with the {@code lmtp.*} properties of {@link SessionExecutor}.
      *
      * @param args The command-line arguments.
      * @throws IOException In case of an exception creating the server socket or accepting new connections.
@@ -309,21 +748,75 @@ public class MySMTPServer extends Thread {
             throw new RuntimeException("This application must be executed with exactly one argument, the listening port.");
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]))) {
-            serverSocket.setReuseAddress(true);
-            System.out.println("Waiting for connections on port " + serverSocket.getLocalPort() + "...");
+        AdmissionControl admission = AdmissionControl.fromSystemProperties("smtp");
+        // Opens the store right away, so messages left in the spool are delivered without waiting for a session.
+        MessageStore.getInstance();
+        Relay.getInstance();
+
+        String lmtpSocket = System.getProperty("lmtp.socket");
+        Integer lmtpPort = Integer.getInteger("lmtp.port");
+        SocketAddress lmtpAddress = lmtpSocket != null ? UnixDomainSocketAddress.of(lmtpSocket)
+                : lmtpPort != null ? new InetSocketAddress(lmtpPort) : null;
+        if (lmtpAddress != null) {
+            Thread listener = new Thread(() -> serveLmtp(lmtpAddress), "lmtp-listener");
+            listener.setDaemon(true);
+            listener.start();
+        }
+
+        if ("nio".equalsIgnoreCase(System.getProperty("smtp.engine"))) {
+            Reactor.fromSystemProperties("smtp", () -> new SmtpReactorSession(admission))
+                    .serve(Integer.parseInt(args[0]));
+            return;
+        }
+
+        Listener.fromSystemProperties("smtp", Integer.parseInt(args[0])).serve((socket, executor) -> {
+            AdmissionControl.Permit permit = admission.admit(socket.getInetAddress());
+            try {
+                MySMTPServer handler = new MySMTPServer(socket, permit);
+                if (permit == null)
+                    handler.reject(SmtpReplies.TOO_MANY_CONNECTIONS);
+                else if (!executor.submit(handler))
+                    handler.reject(SmtpReplies.TOO_MANY_SESSIONS);
+            } catch (IOException e) {
+                System.err.println("Error setting up an individual client's handler.");
+                e.printStackTrace();
+                if (permit != null) permit.close();
+            }
+        });
+    }
+
+    /**
+     * Accepts LMTP connections on a TCP or Unix domain socket, and runs a session for each of them.
+     *
+     * @param address The address to listen on.
+     */
+    private static void serveLmtp(SocketAddress address) {
+        SessionExecutor executor = SessionExecutor.fromSystemProperties("lmtp");
+        boolean unix = address instanceof UnixDomainSocketAddress;
+
+        try (ServerSocketChannel server = unix ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                : ServerSocketChannel.open()) {
+            // A socket file left by a previous run would prevent binding.
+            if (unix) Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            else server.socket().setReuseAddress(true);
+            server.bind(address);
+            System.out.println("Running " + executor);
+            System.out.println("Waiting for LMTP connections on " + address + "...");
             //noinspection InfiniteLoopStatement
             while (true) {
-                Socket socket = serverSocket.accept();
-                System.out.println("Accepted a connection from " + socket.getRemoteSocketAddress());
+                SocketChannel channel = server.accept();
                 try {
-                    MySMTPServer handler = new MySMTPServer(socket);
-                    handler.start();
+                    MySMTPServer handler = new MySMTPServer(channel);
+                    if (!executor.submit(handler)) handler.reject(SmtpReplies.TOO_MANY_SESSIONS);
                 } catch (IOException e) {
                     System.err.println("Error setting up an individual client's handler.");
                     e.printStackTrace();
+                    channel.close();
                 }
             }
+        } catch (IOException e) {
+            System.err.println("Error accepting LMTP connections on " + address + ".");
+            e.printStackTrace();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,165 @@
+package ca.yorku.eecs3214.mail.net;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Authenticator checking passwords against a file of salted PBKDF2 hashes. Every line of the file holds a user name
+ * and the hash of the user's password, as {@code pbkdf2-sha256:<iterations>:<salt>:<hash>} with the salt and hash in
+ * Base64; blank lines and lines starting with {@code #} are ignored. The line of a user is printed by
+ * {@code java ca.yorku.eecs3214.mail.net.PasswordFileAuthenticator <user> <password> [<iterations>]}.
+ * <p>
+ * The file is loaded once, and checked for changes at most once per refresh interval, when it is loaded again if its
+ * size or modification time changed. The password given for an unknown user is hashed all the same, with a salt drawn
+ * when the class is loaded, so the time taken to refuse it does not tell which users exist.
+ */
+public class PasswordFileAuthenticator implements Authenticator {
+
+    private static final String SCHEME = "pbkdf2-sha256";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int DEFAULT_ITERATIONS = 210000;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final byte[] DUMMY_SALT = newSalt();
+
+    private final Path file;
+    private final long refreshInterval;
+
+    // Replaced as a whole when the file is loaded again.
+    private volatile Map<String, String> hashes = Map.of();
+    private volatile long nextCheck;
+    private long size = -1;
+    private long lastModified = 0;
+
+    /**
+     * Creates an authenticator, and loads its password file.
+     *
+     * @param file            The password file.
+     * @param refreshInterval Minimum time between checks of the file for changes, in nanoseconds.
+     */
+    public PasswordFileAuthenticator(Path file, long refreshInterval) {
+        this.file = file;
+        this.refreshInterval = refreshInterval;
+        synchronized (this) {
+            refresh();
+        }
+    }
+
+    @Override
+    public boolean verify(String user, String password) throws IOException {
+        refreshIfDue();
+        String stored = hashes.get(user);
+        if (stored == null) {
+            try {
+                hash(password, DUMMY_SALT, DEFAULT_ITERATIONS, HASH_BITS);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("PBKDF2 is not available.", e);
+            }
+            return false;
+        }
+
+        String[] fields = stored.split(":");
+        if (fields.length != 4 || !fields[0].equals(SCHEME)) {
+            throw new IOException("Unsupported password hash for " + user + " in " + file + ".");
+        }
+        try {
+            byte[] salt = Base64.getDecoder().decode(fields[2]);
+            byte[] expected = Base64.getDecoder().decode(fields[3]);
+            byte[] actual = hash(password, salt, Integer.parseInt(fields[1]), expected.length * 8);
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            throw new IOException("Invalid password hash for " + user + " in " + file + ".", e);
+        }
+    }
+
+    /**
+     * Hashes a password with a new random salt.
+     *
+     * @param password   The password.
+     * @param iterations Number of iterations of PBKDF2.
+     * @return The hash, as stored in the password file.
+     * @throws GeneralSecurityException If PBKDF2 with HMAC-SHA256 is not available.
+     */
+    public static String hash(String password, int iterations) throws GeneralSecurityException {
+        byte[] salt = newSalt();
+        Base64.Encoder base64 = Base64.getEncoder();
+        return SCHEME + ":" + iterations + ":" + base64.encodeToString(salt) + ":"
+                + base64.encodeToString(hash(password, salt, iterations, HASH_BITS));
+    }
+
+    /**
+     * Prints the line of the password file for a user.
+     *
+     * @param args The user name, the password, and optionally the number of iterations.
+     * @throws GeneralSecurityException If PBKDF2 with HMAC-SHA256 is not available.
+     */
+    public static void main(String[] args) throws GeneralSecurityException {
+        if (args.length != 2 && args.length != 3) {
+            throw new RuntimeException("This application must be executed with a user name, a password, and "
+                    + "optionally a number of iterations.");
+        }
+        int iterations = args.length == 3 ? Integer.parseInt(args[2]) : DEFAULT_ITERATIONS;
+        System.out.println(args[0] + " " + hash(args[1], iterations));
+    }
+
+    private static byte[] newSalt() {
+        byte[] salt = new byte[SALT_BYTES];
+        new SecureRandom().nextBytes(salt);
+        return salt;
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations, int bits)
+            throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private void refreshIfDue() {
+        if (System.nanoTime() - nextCheck < 0) return;
+
+        synchronized (this) {
+            if (System.nanoTime() - nextCheck < 0) return;
+            refresh();
+        }
+    }
+
+    /**
+     * Loads the password file again if it changed. Must be called while holding the lock of this authenticator.
+     */
+    private void refresh() {
+        nextCheck = System.nanoTime() + refreshInterval;
+        try {
+            long currentSize = Files.size(file);
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            if (currentSize == size && modified == lastModified) return;
+
+            Map<String, String> loaded = new HashMap<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+                String[] fields = trimmed.split("\\s+", 2);
+                if (fields.length == 2) loaded.put(fields[0], fields[1].trim());
+            }
+            hashes = loaded;
+            size = currentSize;
+            lastModified = modified;
+        } catch (IOException e) {
+            System.err.println("Error loading the password file " + file + ".");
+            e.printStackTrace();
+        }
+    }
+}
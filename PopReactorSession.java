@@ -0,0 +1,444 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.MailMessage;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * POP3 state machine for the non-blocking {@link Reactor} engine. Implements the same commands and replies as
+ * {@link MyPOPServer}, with the session states of RFC 1939 made explicit.
+ */
+public class PopReactorSession implements Reactor.Session {
+
+    private enum State { AUTHORIZATION, TRANSACTION, UPDATE }
+
+    private final AdmissionControl admission;
+    private AdmissionControl.Permit permit;
+    private TimingWheel.Timeout autologout;
+    private State state = State.AUTHORIZATION;
+    private String user = null;
+    private Mailbox mail = null;
+    // The messages of the mailbox, as loaded at PASS.
+    private MailMessage[] messages = new MailMessage[0];
+    // The lock on the maildrop, held from PASS to the end of the session, and the shared sizes and unique ids of the
+    // messages.
+    private Maildrops.Lock lock = null;
+    private Maildrops.Snapshot snapshot = null;
+    // Running totals for STAT: the undeleted messages, and the size of those tagged for deletion, taken off the total
+    // of the snapshot.
+    private int undeletedCount = 0;
+    private long deletedOctets = 0;
+
+    /**
+     * Creates a session for a new connection.
+     *
+     * @param admission Decides whether the connection is accepted and limits its rate of commands.
+     */
+    public PopReactorSession(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    @Override
+    public void opened(Reactor.Connection connection) {
+        permit = admission.admit(connection.getInetAddress());
+        if (permit == null) {
+            connection.println("-ERR Too many connections, try again later");
+            connection.close();
+            return;
+        }
+        autologout = TimingWheel.shared().schedule(connection::abort, MyPOPServer.AUTOLOGOUT_TIMEOUT, TimeUnit.SECONDS);
+        connection.println("+OK POP3 server ready");
+    }
+
+    @Override
+    public void closed(Reactor.Connection connection) {
+        if (autologout != null) autologout.cancel();
+        if (lock != null) lock.close();
+        if (permit != null) permit.close();
+    }
+
+    @Override
+    public void lineReceived(Reactor.Connection connection, String line) throws IOException {
+        if (line.isEmpty() || state == State.UPDATE) return;
+
+        autologout.reset(MyPOPServer.AUTOLOGOUT_TIMEOUT, TimeUnit.SECONDS);
+
+        if (!permit.tryCommand()) {
+            connection.println("-ERR Too many commands, closing connection");
+            connection.close();
+            return;
+        }
+
+        String[] arg = line.split(" ");
+        String command = arg[0].toUpperCase();
+
+        if (state == State.AUTHORIZATION) {
+            switch (command) {
+                case "USER":
+                    handleUSER(connection, arg);
+                    return;
+                case "PASS":
+                    handlePASS(connection, arg);
+                    return;
+                case "QUIT":
+                    handleQUIT(connection);
+                    return;
+                case "CAPA":
+                    handleCAPA(connection);
+                    return;
+                case "STLS":
+                    handleSTLS(connection);
+                    return;
+                case "STAT":
+                case "LIST":
+                case "RETR":
+                case "TOP":
+                case "UIDL":
+                case "DELE":
+                case "RSET":
+                case "NOOP":
+                    connection.println("-ERR Authenticate first");
+                    return;
+                default:
+                    connection.println("-ERR Unknown command");
+                    return;
+            }
+        }
+
+        try {
+            switch (command) {
+                case "STAT":
+                    connection.println("+OK " + undeletedCount + " " + (snapshot.getOctets() - deletedOctets));
+                    break;
+                case "LIST":
+                    handleLIST(connection, arg);
+                    break;
+                case "RETR":
+                    handleRETR(connection, arg);
+                    break;
+                case "TOP":
+                    handleTOP(connection, arg);
+                    break;
+                case "UIDL":
+                    handleUIDL(connection, arg);
+                    break;
+                case "DELE":
+                    handleDELE(connection, arg);
+                    break;
+                case "RSET":
+                    handleRSET(connection);
+                    break;
+                case "NOOP":
+                    connection.println("+OK");
+                    break;
+                case "CAPA":
+                    handleCAPA(connection);
+                    break;
+                case "QUIT":
+                    handleQUIT(connection);
+                    break;
+                default:
+                    connection.println("-ERR Unknown command");
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            connection.println("-ERR Syntax error in " + command + " command");
+        }
+    }
+
+    /**
+     * Lists the capabilities of the server (RFC 2449). STLS is only offered before authentication, on a connection
+     * that is not secured yet.
+     */
+    private void handleCAPA(Reactor.Connection connection) {
+        connection.println("+OK Capability list follows");
+        connection.println("USER");
+        connection.println("TOP");
+        connection.println("UIDL");
+        connection.println("RESP-CODES");
+        connection.println("AUTH-RESP-CODE");
+        if (state == State.AUTHORIZATION && !connection.isSecure() && Tls.getInstance() != null) {
+            connection.println("STLS");
+        }
+        connection.println(".");
+    }
+
+    /**
+     * Switches the connection to TLS (RFC 2595, section 4) once the reply is sent. The user must be given again on
+     * the secured connection.
+     */
+    private void handleSTLS(Reactor.Connection connection) {
+        if (Tls.getInstance() == null) {
+            connection.println("-ERR TLS not available");
+            return;
+        }
+        if (connection.isSecure()) {
+            connection.println("-ERR Command not permitted");
+            return;
+        }
+
+        connection.println("+OK Begin TLS negotiation");
+        connection.startTls(Tls.getInstance().createEngine());
+        user = null;
+    }
+
+    private void handleUSER(Reactor.Connection connection, String[] arg) {
+        if (arg.length != 2) {
+            connection.println("-ERR Syntax error in USER command");
+            return;
+        }
+
+        user = arg[1];
+        connection.println("+OK User name accepted, password required");
+    }
+
+    private void handlePASS(Reactor.Connection connection, String[] arg) {
+        if (arg.length != 2) {
+            connection.println("-ERR Syntax error in PASS command");
+            return;
+        }
+
+        if (!UserDirectory.getInstance().isValidUser(user)) {
+            connection.println("-ERR User name not found");
+            return;
+        }
+        // Refused right away after too many failures, without checking the password. An allowed attempt counts as a
+        // failure until it succeeds.
+        LoginThrottle throttle = LoginThrottle.getInstance();
+        if (!throttle.allowed(connection.getInetAddress(), user)) {
+            connection.println("-ERR [AUTH] Too many failed logins, try again later");
+            return;
+        }
+        // The password is hashed on a worker thread, so the other connections of the event loop are not held up.
+        String name = user;
+        String password = arg[1];
+        connection.offload(() -> Authenticator.getInstance().verify(name, password), (valid, error) -> {
+            if (error != null) {
+                // The password could not be checked, so the attempt the throttle counted is taken back.
+                throttle.cancelled(connection.getInetAddress(), user);
+                System.err.println("Error checking the password of " + user + ".");
+                error.printStackTrace();
+                connection.println("-ERR [SYS/TEMP] Authentication unavailable, try again later");
+            } else if (!valid) {
+                connection.println("-ERR [AUTH] invalid password");
+            } else {
+                login(connection, password);
+            }
+        });
+    }
+
+    /**
+     * Locks and loads the maildrop of a user whose password was just verified. The maildrop is locked before it is
+     * loaded, so no other session changes it in the meantime.
+     */
+    private void login(Reactor.Connection connection, String password) {
+        // Another session may hold the lock already (RFC 1939, section 8).
+        LoginThrottle throttle = LoginThrottle.getInstance();
+        lock = Maildrops.getInstance().lock(user);
+        if (lock == null) {
+            // The password was right, so the attempt is not held against the user.
+            throttle.cancelled(connection.getInetAddress(), user);
+            connection.println("-ERR [IN-USE] Maildrop already locked");
+            return;
+        }
+
+        mail = new Mailbox(user);
+        DeletionJournal journal = DeletionJournal.getInstance();
+        long epoch = journal == null ? 0 : journal.getEpoch();
+        try {
+            mail.loadMessages(password);
+            state = State.TRANSACTION;
+            throttle.succeeded(connection.getInetAddress(), user);
+            messages = new MailMessage[mail.size(true)];
+            for (int i = 0; i < messages.length; i++) messages[i] = mail.getMailMessage(i + 1);
+            // Messages removed by an earlier session but not expunged yet are left out.
+            if (journal != null) messages = journal.visible(messages, epoch);
+            snapshot = lock.snapshot(messages);
+            countTotals();
+            QuotaIndex.getInstance().loaded(user, snapshot.getFileOctets());
+            connection.println("+OK POP3 server ready");
+        } catch (Mailbox.MailboxNotAuthenticatedException e) {
+            lock.close();
+            lock = null;
+            mail = null;
+            connection.println("-ERR [AUTH] invalid password");
+        }
+    }
+
+    private void handleLIST(Reactor.Connection connection, String[] arg) {
+        if (arg.length == 1) {
+            connection.println("+OK " + undeletedCount + " messages:");
+            for (int i = 1; i <= messages.length; i++) {
+                MailMessage comm = messages[i - 1];
+                if (!comm.isDeleted()) connection.println(i + " " + snapshot.getSize(i - 1));
+            }
+            connection.println(".");
+            return;
+        }
+
+        MailMessage comm = message(arg[1]);
+        if (comm == null) connection.println("-ERR No such message");
+        else connection.println("+OK " + arg[1] + " " + snapshot.getSize(Integer.parseInt(arg[1]) - 1));
+    }
+
+    /**
+     * Sends a message from the {@link WireFormatCache}, where it is already dot-stuffed and terminated, so that it is
+     * queued as a range of its segment and sent without being copied through the reactor's buffers. The message is
+     * released by the connection once sent.
+     */
+    private void handleRETR(Reactor.Connection connection, String[] arg) throws IOException {
+        WireFormatCache.WireMessage wire = wireMessage(connection, arg[1]);
+        if (wire == null) return;
+
+        connection.println("+OK " + wire.getOctets() + " octets");
+        connection.sendRange(wire.getChannel(), wire.getPosition(), wire.getLength(), wire::release);
+    }
+
+    /**
+     * Sends the headers and the first lines of the body of a message (RFC 1939, section 7), found with the index of
+     * its wire format copy.
+     */
+    private void handleTOP(Reactor.Connection connection, String[] arg) throws IOException {
+        int lines = Integer.parseInt(arg[2]);
+        if (lines < 0) {
+            connection.println("-ERR Syntax error in TOP command");
+            return;
+        }
+        WireFormatCache.WireMessage wire = wireMessage(connection, arg[1]);
+        if (wire == null) return;
+
+        long length;
+        try {
+            length = wire.topLength(lines);
+        } catch (IOException e) {
+            wire.release();
+            throw e;
+        }
+        connection.println("+OK Top of message follows");
+        connection.sendRange(wire.getChannel(), wire.getPosition(), length, wire::release);
+        connection.println(".");
+    }
+
+    /**
+     * Lists the unique ids of the messages (RFC 1939, section 7), derived from the attributes of their files without
+     * opening them, and kept in the maildrop's snapshot for the next sessions.
+     */
+    private void handleUIDL(Reactor.Connection connection, String[] arg) throws IOException {
+        if (arg.length == 1) {
+            connection.println("+OK");
+            for (int i = 1; i <= messages.length; i++) {
+                MailMessage comm = messages[i - 1];
+                if (!comm.isDeleted()) connection.println(i + " " + snapshot.getUniqueId(i - 1));
+            }
+            connection.println(".");
+            return;
+        }
+
+        MailMessage comm = message(arg[1]);
+        if (comm == null) connection.println("-ERR No such message");
+        else connection.println("+OK " + arg[1] + " " + snapshot.getUniqueId(Integer.parseInt(arg[1]) - 1));
+    }
+
+    private void handleDELE(Reactor.Connection connection, String[] arg) {
+        MailMessage comm = message(arg[1]);
+        if (comm == null) {
+            connection.println("-ERR No such message");
+            return;
+        }
+
+        comm.tagForDeletion();
+        undeletedCount--;
+        deletedOctets += snapshot.getSize(Integer.parseInt(arg[1]) - 1);
+        connection.println("+OK Message deleted");
+    }
+
+    private void handleRSET(Reactor.Connection connection) {
+        for (int i = 1; i <= messages.length; i++) {
+            MailMessage comm = messages[i - 1];
+            if (!comm.isDeleted()) continue;
+            comm.undelete();
+            undeletedCount++;
+        }
+        deletedOctets = 0;
+        connection.println("+OK");
+    }
+
+    /**
+     * Sets the running totals of the undeleted messages of a mailbox just loaded. Their size comes from the snapshot,
+     * whose sizes are in wire format like those reported by RETR, and only measured once a command needs them.
+     */
+    private void countTotals() {
+        undeletedCount = messages.length;
+        deletedOctets = 0;
+    }
+
+    private void handleQUIT(Reactor.Connection connection) {
+        if (state == State.TRANSACTION) {
+            lock.expunge(this::expunge);
+            lock.close();
+        }
+        state = State.UPDATE;
+        connection.println("+OK POP3 server signing off");
+        connection.close();
+    }
+
+    /**
+     * Removes the messages tagged for deletion. With a {@link DeletionJournal}, they are only recorded as removed, and
+     * unlinked from the store in the background, so QUIT takes the same time however many messages were deleted.
+     */
+    private void expunge() {
+        QuotaIndex.getInstance().removing(user, mail);
+        DeletionJournal journal = DeletionJournal.getInstance();
+        if (journal != null) {
+            try {
+                Map<Path, String> removed = new LinkedHashMap<>();
+                for (int i = 0; i < messages.length; i++) {
+                    if (messages[i].isDeleted()) removed.put(messages[i].getFile().toPath(), snapshot.getUniqueId(i));
+                }
+                journal.delete(removed);
+                return;
+            } catch (IOException e) {
+                System.err.println("Could not journal the messages removed by " + user + ", removing them now.");
+                e.printStackTrace();
+            }
+        }
+        MessageStore.getInstance().deleteMessagesTaggedForDeletion(mail);
+    }
+
+    /**
+     * Finds an undeleted message in wire format, replying with an error if there is no such message or it cannot be
+     * read.
+     *
+     * @return The message, to release once sent, or null if an error was sent.
+     */
+    private WireFormatCache.WireMessage wireMessage(Reactor.Connection connection, String number) {
+        MailMessage comm = message(number);
+        if (comm == null) {
+            connection.println("-ERR No such message");
+            return null;
+        }
+        try {
+            return WireFormatCache.getInstance().get(comm.getFile().toPath());
+        } catch (IOException e) {
+            System.err.println("Error reading message content.");
+            e.printStackTrace();
+            connection.println("-ERR Failed to read message content");
+            return null;
+        }
+    }
+
+    /**
+     * @return The undeleted message with the given one-based number, or null if there is no such message.
+     */
+    private MailMessage message(String number) {
+        int index = Integer.parseInt(number);
+        if (index < 1 || index > messages.length) return null;
+
+        MailMessage comm = messages[index - 1];
+        return comm.isDeleted() ? null : comm;
+    }
+}
@@ -0,0 +1,152 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.MailMessage;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of the space used by every mailbox, shared by all sessions, so that a recipient whose mailbox is
+ * over its quota is refused at RCPT time, before the content of the message is transferred.
+ * <p>
+ * The quota of every mailbox, in bytes, is set with the {@code mail.quota} system property; without it, or with 0,
+ * quotas are not enforced and nothing is tracked. Quotas require a {@link MessageStore} that can measure its
+ * mailboxes, which it does the first time the usage of a mailbox is needed. The usage is then kept up to date as
+ * messages are delivered through the writers returned by {@link #track}, and as POP sessions remove messages. When a
+ * POP session loads a mailbox, the usage is reset to its actual size.
+ */
+public class QuotaIndex {
+
+    private static final QuotaIndex INSTANCE = new QuotaIndex(Long.getLong("mail.quota", 0));
+
+    private final long quota;
+    private final ConcurrentHashMap<String, AtomicLong> usage = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an index.
+     *
+     * @param quota Largest space a mailbox can use, in bytes, or 0 if quotas are not enforced.
+     */
+    public QuotaIndex(long quota) {
+        this.quota = quota;
+    }
+
+    /**
+     * @return The index shared by all the sessions of this process.
+     */
+    public static QuotaIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks if a message can be delivered to a mailbox without exceeding its quota.
+     *
+     * @param user The user name (email address) of the mailbox.
+     * @param size The size of the message declared by the client, or -1 if it is not known.
+     * @return false if the mailbox is full, or would be with a message of the declared size.
+     */
+    public boolean accepts(String user, long size) {
+        if (quota <= 0) return true;
+        long used = counter(user).get();
+        return used < quota && used + Math.max(size, 0) <= quota;
+    }
+
+    /**
+     * Counts the content of a message delivered through a writer, and adds it to the usage of every recipient once
+     * the writer is closed successfully.
+     *
+     * @param recipients The users (email addresses) the message is delivered to.
+     * @param out        The writer delivering the message.
+     * @return A writer to use instead of the given one.
+     */
+    public Writer track(List<String> recipients, Writer out) {
+        if (quota <= 0) return out;
+        // Measured before the message is delivered, so it is not counted twice.
+        for (String recipient : recipients) counter(recipient);
+        return new CountingWriter(List.copyOf(recipients), out);
+    }
+
+    /**
+     * Resets the usage of a mailbox to the size of its messages, just after they have been loaded.
+     *
+     * @param user   The user name (email address) of the mailbox.
+     * @param octets The total size of the messages in the mailbox.
+     */
+    public void loaded(String user, long octets) {
+        if (quota <= 0) return;
+        counter(user).set(octets);
+    }
+
+    /**
+     * Removes the messages tagged for deletion from the usage of a mailbox. Must be called before they are removed.
+     *
+     * @param user    The user name (email address) of the mailbox.
+     * @param mailbox The mailbox, with its messages loaded.
+     */
+    public void removing(String user, Mailbox mailbox) {
+        if (quota <= 0) return;
+        long size = 0;
+        for (int i = 1; i <= mailbox.size(true); i++) {
+            MailMessage message = mailbox.getMailMessage(i);
+            if (message.isDeleted()) size += message.getFileSize();
+        }
+        long removed = size;
+        counter(user).updateAndGet(used -> Math.max(used - removed, 0));
+    }
+
+    private AtomicLong counter(String user) {
+        AtomicLong counter = usage.get(user);
+        if (counter != null) return counter;
+        // Measured outside of the map, since the store may have to go to disk.
+        long size = MessageStore.getInstance().mailboxSize(user);
+        counter = usage.putIfAbsent(user, new AtomicLong(Math.max(size, 0)));
+        return counter != null ? counter : usage.get(user);
+    }
+
+    /**
+     * Counts the characters written to a message, each of which is a byte of the content received from the client.
+     * An aborted message is not counted.
+     */
+    private class CountingWriter extends Writer implements MessageStore.Abortable {
+
+        private final List<String> recipients;
+        private final Writer out;
+        private long count = 0;
+        private boolean closed = false;
+
+        private CountingWriter(List<String> recipients, Writer out) {
+            this.recipients = recipients;
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            out.close();
+            closed = true;
+            for (String recipient : recipients) counter(recipient).addAndGet(count);
+        }
+
+        @Override
+        public void abort() {
+            if (closed) return;
+            closed = true;
+            MessageStore.abort(out);
+        }
+    }
+}
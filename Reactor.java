@@ -0,0 +1,811 @@
+package ca.yorku.eecs3214.mail.net;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking server engine based on {@link Selector}. Acceptor threads hand new connections to a fixed number of
+ * event loops (one per core by default), and each event loop drives the line-based state machines of all the
+ * connections assigned to it. With several acceptors, configured as described in {@link Listener}, each one listens
+ * on its own channel bound with {@code SO_REUSEPORT} and feeds its own share of the event loops. No thread is ever
+ * blocked waiting for a single client, so a large number of mostly idle connections costs only their buffers.
+ * <p>
+ * Memory per connection is bounded: incoming bytes are read into a direct buffer owned by the event loop and only the
+ * incomplete line is kept with the connection, while outgoing data is written from direct buffers taken from a shared
+ * pool and returned to it once sent. Files queued with {@link Connection#sendFile(Path, long)}, and ranges of files
+ * kept open by the session with {@link Connection#sendRange}, are sent straight from the page cache with
+ * {@link FileChannel#transferTo}, without going through these buffers. On a secured connection, they are read into a
+ * single pooled buffer one chunk at a time, as the socket drains, so a large file never takes more memory than that.
+ * <p>
+ * A session can switch its connection to TLS with {@link Connection#startTls(SSLEngine)}. The {@link SSLEngine}
+ * decrypts what is read into the event loop's buffer and encrypts the queued replies as they are sent, so secured
+ * connections are driven like the others. Delegated tasks of the engine run on the event loop.
+ * <p>
+ * Work that would block an event loop, such as checking a password or syncing a message to disk, is handed with
+ * {@link Connection#offload} to a pool of worker threads, while the loop goes on serving the other connections. The
+ * connection reads no further request meanwhile, and its session gets the outcome back on the event loop.
+ */
+public class Reactor {
+
+    /**
+     * A protocol state machine driven by the reactor. Methods are always called from the event loop that owns the
+     * connection, so implementations do not need any synchronization, but must not block for long.
+     */
+    public interface Session {
+
+        /**
+         * Called once the connection has been accepted, typically to send the greeting.
+         *
+         * @param connection The connection associated to this session.
+         * @throws IOException If the session cannot be started; the connection is closed.
+         */
+        void opened(Connection connection) throws IOException;
+
+        /**
+         * Called for every complete line received from the client, without the line terminator.
+         *
+         * @param connection The connection associated to this session.
+         * @param line       The line received, decoded as ISO-8859-1 so every byte maps to one character.
+         * @throws IOException If the request cannot be handled; the connection is closed.
+         */
+        void lineReceived(Connection connection, String line) throws IOException;
+
+        /**
+         * Called for every complete line received from the client, without the line terminator, before it is
+         * decoded. Sessions parsing lines at the byte level override this method to avoid decoding every line; by
+         * default, the line is decoded and passed to {@link #lineReceived(Connection, String)}.
+         *
+         * @param connection The connection associated to this session.
+         * @param line       Buffer containing the line, only valid until this method returns.
+         * @param length     Number of bytes of the line in the buffer.
+         * @throws IOException If the request cannot be handled; the connection is closed.
+         */
+        default void lineReceived(Connection connection, byte[] line, int length) throws IOException {
+            lineReceived(connection, new String(line, 0, length, StandardCharsets.ISO_8859_1));
+        }
+
+        /**
+         * Called once the connection has been closed, for whatever reason.
+         *
+         * @param connection The connection associated to this session.
+         */
+        default void closed(Connection connection) {
+        }
+    }
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4096;
+    private static final int INITIAL_LINE_LENGTH = 256;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final String name;
+    private final Supplier<Session> sessions;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final int acceptors;
+    private final int backlog;
+    private final boolean logConnections;
+    private final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a reactor.
+     *
+     * @param name     Name of the server, used for thread names.
+     * @param threads  Number of event loop threads, or a non-positive value for one per available core.
+     * @param sessions Creates a new session for each accepted connection.
+     */
+    public Reactor(String name, int threads, Supplier<Session> sessions) {
+        this(name, threads, 0, 1, 0, true, sessions);
+    }
+
+    /**
+     * Creates a reactor accepting connections on several threads.
+     *
+     * @param name           Name of the server, used for thread names.
+     * @param threads        Number of event loop threads, or a non-positive value for one per available core.
+     * @param workers        Number of worker threads running offloaded tasks, or a non-positive value for four per
+     *                       event loop.
+     * @param acceptors      Number of acceptor threads, at most one per event loop.
+     * @param backlog        Length of the accept queue of each acceptor, or 0 for the platform's default.
+     * @param logConnections true to print every accepted connection.
+     * @param sessions       Creates a new session for each accepted connection.
+     */
+    public Reactor(String name, int threads, int workers, int acceptors, int backlog, boolean logConnections,
+                   Supplier<Session> sessions) {
+        this.name = name;
+        this.sessions = sessions;
+        this.loops = new EventLoop[threads > 0 ? threads : Runtime.getRuntime().availableProcessors()];
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workers > 0 ? workers : 4 * loops.length, runnable -> {
+            Thread thread = new Thread(runnable, name + "-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        int wanted = Math.min(Math.max(acceptors, 1), loops.length);
+        this.acceptors = wanted > 1 && !Listener.supportsReusePort() ? 1 : wanted;
+        this.backlog = backlog;
+        this.logConnections = logConnections;
+        if (wanted > this.acceptors) {
+            System.err.println("SO_REUSEPORT is not available on this platform, using a single acceptor.");
+        }
+    }
+
+    /**
+     * Creates a reactor configured with the {@code <name>.reactorThreads} and {@code <name>.reactorWorkers} system
+     * properties, and the acceptor properties described in {@link Listener}.
+     *
+     * @param name     Name of the server, used as the property prefix and for thread names.
+     * @param sessions Creates a new session for each accepted connection.
+     * @return The configured reactor.
+     */
+    public static Reactor fromSystemProperties(String name, Supplier<Session> sessions) {
+        return new Reactor(name, Integer.getInteger(name + ".reactorThreads", 0),
+                Integer.getInteger(name + ".reactorWorkers", 0), Integer.getInteger(name + ".acceptors", 1), Integer.getInteger(name + ".backlog", 0),
+                Boolean.parseBoolean(System.getProperty(name + ".logConnections", "true")), sessions);
+    }
+
+    /**
+     * Starts the event loops and accepts connections on the given port. Only returns if the listening socket fails.
+     *
+     * @param port The listening port.
+     * @throws IOException In case of an exception creating the server socket or accepting new connections.
+     */
+    public void serve(int port) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(loops[i], name + "-loop-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        ServerSocketChannel[] servers = new ServerSocketChannel[acceptors];
+        try {
+            for (int i = 0; i < acceptors; i++) servers[i] = Listener.bindChannel(port, backlog, acceptors > 1);
+        } catch (IOException e) {
+            for (ServerSocketChannel server : servers) if (server != null) server.close();
+            throw e;
+        }
+        System.out.println("Running " + name + " sessions on " + loops.length + " event loops"
+                + (acceptors > 1 ? " with " + acceptors + " acceptors" : ""));
+        System.out.println("Waiting for connections on port " + servers[0].socket().getLocalPort() + "...");
+
+        for (int i = 1; i < acceptors; i++) {
+            int acceptor = i;
+            Thread thread = new Thread(() -> acceptLoop(servers[acceptor], acceptor), name + "-acceptor-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try (ServerSocketChannel server = servers[0]) {
+            accept(server, 0);
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel server, int acceptor) {
+        try (server) {
+            accept(server, acceptor);
+        } catch (IOException e) {
+            System.err.println("Error accepting " + name + " connections.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Accepts connections and hands them in turn to the event loops of an acceptor: loops {@code acceptor},
+     * {@code acceptor + acceptors}, and so on.
+     */
+    private void accept(ServerSocketChannel server, int acceptor) throws IOException {
+        int next = acceptor;
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            SocketChannel channel = server.accept();
+            if (logConnections) System.out.println("Accepted a connection from " + channel.getRemoteAddress());
+            loops[next].register(channel);
+            next += acceptors;
+            if (next >= loops.length) next = acceptor;
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        if (bufferPool.size() < MAX_POOLED_BUFFERS) bufferPool.offer(buffer);
+    }
+
+    /**
+     * A client connection handled by the reactor.
+     */
+    public class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Session session;
+        private final EventLoop loop;
+        // Buffers of queued data, and files to send between them.
+        private final ArrayDeque<Object> pending = new ArrayDeque<>();
+        private byte[] line = new byte[INITIAL_LINE_LENGTH];
+        private int lineLength = 0;
+        private boolean closeRequested = false;
+        // Set while an offloaded task runs, with the data received meanwhile, or before it, kept for afterwards.
+        private boolean suspended = false;
+        private ByteBuffer held;
+
+        // Set by startTls, and used once the replies queued before it have been sent.
+        private SSLEngine requestedTls;
+        private SSLEngine tls;
+        private ByteBuffer tlsIn;
+        private ByteBuffer tlsOut;
+        private ByteBuffer plainIn;
+
+        private Connection(EventLoop loop, SocketChannel channel, SelectionKey key, Session session) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.session = session;
+        }
+
+        /**
+         * @return The address of the client.
+         */
+        public InetAddress getInetAddress() {
+            return channel.socket().getInetAddress();
+        }
+
+        /**
+         * Queues a reply line to be sent to the client, adding the CRLF terminator. Replies are sent once all the
+         * data currently available from the client has been processed.
+         *
+         * @param reply The reply, without its line terminator.
+         */
+        public void println(String reply) {
+            write(reply.getBytes(StandardCharsets.ISO_8859_1));
+            write(CRLF);
+        }
+
+        /**
+         * Queues raw bytes to be sent to the client.
+         *
+         * @param data The bytes to send.
+         */
+        public void write(byte[] data) {
+            write(data, data.length);
+        }
+
+        /**
+         * Queues the content of a file to be sent to the client after the data already queued. On a plain connection,
+         * the file is sent with {@link FileChannel#transferTo}, so the kernel copies it from the page cache to the
+         * socket; on a secured one, it is read and encrypted one buffer at a time, as the socket accepts more data.
+         *
+         * @param file The file to send, which can be removed once this method returns.
+         * @throws IOException If the file cannot be opened.
+         */
+        public void sendFile(Path file) throws IOException {
+            sendFile(file, Long.MAX_VALUE);
+        }
+
+        /**
+         * Queues the beginning of a file to be sent to the client, like {@link #sendFile(Path)}.
+         *
+         * @param file   The file to send, which can be removed once this method returns.
+         * @param length The number of bytes to send from the start of the file, at most its size.
+         * @throws IOException If the file cannot be opened.
+         */
+        public void sendFile(Path file, long length) throws IOException {
+            FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+            long size;
+            try {
+                size = in.size();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            sendRange(in, 0, Math.min(length, size), () -> {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            });
+        }
+
+        /**
+         * Queues a range of an open file to be sent to the client, like {@link #sendFile(Path)}, without closing the
+         * file, which can be shared with other connections.
+         *
+         * @param file     The file to send from.
+         * @param position The position of the first byte to send.
+         * @param length   The number of bytes to send.
+         * @param sent     Called once the range has been sent, or the connection has closed, to release the file.
+         */
+        public void sendRange(FileChannel file, long position, long length, Runnable sent) {
+            pending.add(new FileRegion(file, position, position + length, sent));
+        }
+
+        private void write(byte[] data, int length) {
+            int offset = 0;
+            while (offset < length) {
+                // Data queued after a file goes into a new buffer.
+                ByteBuffer last = pending.peekLast() instanceof ByteBuffer buffer ? buffer : null;
+                if (last == null || !last.hasRemaining()) {
+                    last = acquireBuffer();
+                    pending.add(last);
+                }
+                int count = Math.min(last.remaining(), length - offset);
+                last.put(data, offset, count);
+                offset += count;
+            }
+        }
+
+        /**
+         * Switches the connection to TLS once the replies queued so far have been sent in plaintext, such as the reply
+         * accepting STARTTLS. Anything received after the current line is discarded, so that commands pipelined in
+         * plaintext are not taken as coming from the secured session.
+         *
+         * @param engine The engine securing the connection, in server mode.
+         */
+        public void startTls(SSLEngine engine) {
+            requestedTls = engine;
+        }
+
+        /**
+         * @return true if the connection is secured by TLS, or about to be.
+         */
+        public boolean isSecure() {
+            return tls != null || requestedTls != null;
+        }
+
+        /**
+         * Closes the connection once all queued replies have been sent.
+         */
+        public void close() {
+            closeRequested = true;
+        }
+
+        /**
+         * Runs a blocking task on one of the reactor's worker threads, so the event loop goes on serving the other
+         * connections meanwhile. No further request is read from the client until the task is done; its outcome is
+         * then handed to {@code done} on the event loop, where replies can be queued as usual.
+         *
+         * @param task The blocking task.
+         * @param done Called on the event loop with the result of the task, or the exception it threw, unless the
+         *             connection was closed meanwhile.
+         * @param <T>  The type of the result.
+         */
+        public <T> void offload(Callable<T> task, BiConsumer<T, Exception> done) {
+            suspended = true;
+            workers.execute(() -> {
+                T result = null;
+                Exception error = null;
+                try {
+                    result = task.call();
+                } catch (Exception e) {
+                    error = e;
+                }
+                T value = result;
+                Exception failure = error;
+                loop.execute(() -> resume(value, failure, done));
+            });
+        }
+
+        /**
+         * Hands the outcome of an offloaded task to the session, then processes the requests received meanwhile and
+         * reads again.
+         */
+        private <T> void resume(T result, Exception error, BiConsumer<T, Exception> done) {
+            if (!channel.isOpen()) return;
+            suspended = false;
+            try {
+                done.accept(result, error);
+                if (held != null) {
+                    ByteBuffer input = held.flip();
+                    held = null;
+                    received(input);
+                }
+                flush();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error in client's connection handling.");
+                e.printStackTrace();
+                terminate();
+            }
+        }
+
+        /**
+         * Closes the connection right away, dropping any queued replies. Unlike the other methods of the connection,
+         * this one can be called from any thread, e.g. when a timeout expires.
+         */
+        public void abort() {
+            loop.execute(this::terminate);
+        }
+
+        private void received(ByteBuffer input) throws IOException {
+            while (input.hasRemaining() && !closeRequested && requestedTls == null && !suspended) {
+                byte b = input.get();
+                if (b == '\n') {
+                    int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    lineLength = 0;
+                    session.lineReceived(this, line, length);
+                } else {
+                    if (lineLength == line.length) {
+                        if (line.length >= MAX_LINE_LENGTH) throw new IOException("Line too long");
+                        byte[] larger = new byte[Math.min(line.length * 2, MAX_LINE_LENGTH)];
+                        System.arraycopy(line, 0, larger, 0, lineLength);
+                        line = larger;
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            if (suspended) hold(input);
+            // Do not hold on to a large line buffer once the long line is gone.
+            if (lineLength == 0 && line.length > INITIAL_LINE_LENGTH) line = new byte[INITIAL_LINE_LENGTH];
+        }
+
+        /**
+         * Keeps the data received while an offloaded task runs. Nothing more is read from the socket meanwhile, so
+         * this is at most what a single read brought in.
+         */
+        private void hold(ByteBuffer input) {
+            if (!input.hasRemaining()) return;
+            if (held == null || held.remaining() < input.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate((held == null ? 0 : held.position()) + input.remaining());
+                if (held != null) larger.put(held.flip());
+                held = larger;
+            }
+            held.put(input);
+        }
+
+        /**
+         * Decrypts the records received on a secured connection, and processes the lines they contain.
+         */
+        private void receivedTls(ByteBuffer input) throws IOException {
+            while (input.hasRemaining()) {
+                int count = Math.min(input.remaining(), tlsIn.remaining());
+                tlsIn.put(input.slice().limit(count));
+                input.position(input.position() + count);
+
+                tlsIn.flip();
+                try {
+                    while (tlsIn.hasRemaining() && !closeRequested) {
+                        SSLEngineResult result = tls.unwrap(tlsIn, plainIn);
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) break;
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                            throw new IOException("TLS record larger than the session allows");
+                        }
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            close();
+                            break;
+                        }
+                        plainIn.flip();
+                        received(plainIn);
+                        plainIn.clear();
+
+                        // Handshake messages must be answered before the next ones are read.
+                        runDelegatedTasks();
+                        if (tls.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) flush();
+                        else if (result.bytesConsumed() == 0) break;
+                    }
+                } finally {
+                    tlsIn.compact();
+                }
+            }
+        }
+
+        private void runDelegatedTasks() {
+            Runnable task;
+            while ((task = tls.getDelegatedTask()) != null) task.run();
+        }
+
+        private void flush() throws IOException {
+            if (tls != null) {
+                flushTls();
+                return;
+            }
+            while (!pending.isEmpty()) {
+                if (pending.peek() instanceof FileRegion region) {
+                    if (!region.transferTo(channel)) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    release(pending.poll());
+                    continue;
+                }
+                ByteBuffer buffer = (ByteBuffer) pending.peek();
+                buffer.flip();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // Stop reading requests from a client that is not reading its replies.
+                    buffer.compact();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                release(pending.poll());
+            }
+            if (requestedTls != null && !closeRequested) {
+                tls = requestedTls;
+                requestedTls = null;
+                SSLSession session = tls.getSession();
+                tlsIn = ByteBuffer.allocate(session.getPacketBufferSize());
+                tlsOut = ByteBuffer.allocate(session.getPacketBufferSize());
+                plainIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+                tls.beginHandshake();
+            }
+            // Nothing is read while an offloaded task runs.
+            key.interestOps(suspended ? 0 : SelectionKey.OP_READ);
+            if (closeRequested) terminate();
+        }
+
+        /**
+         * Encrypts and sends the queued replies, along with the handshake messages and the closure alert of the TLS
+         * session.
+         */
+        private void flushTls() throws IOException {
+            while (true) {
+                if (tlsOut.position() > 0) {
+                    tlsOut.flip();
+                    channel.write(tlsOut);
+                    boolean blocked = tlsOut.hasRemaining();
+                    tlsOut.compact();
+                    if (blocked) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+
+                runDelegatedTasks();
+                if (closeRequested && pending.isEmpty() && !tls.isOutboundDone()) tls.closeOutbound();
+                SSLEngineResult.HandshakeStatus status = tls.getHandshakeStatus();
+                // Files are read one chunk at a time, only once the previous chunk has been encrypted.
+                Object head = pending.peek();
+                ByteBuffer data;
+                if (head instanceof FileRegion region) {
+                    data = region.read();
+                    if (data == null) {
+                        release(pending.poll());
+                        continue;
+                    }
+                } else {
+                    data = (ByteBuffer) head;
+                }
+                // Replies are held back until the handshake is complete.
+                boolean handshaking = status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+                if (status != SSLEngineResult.HandshakeStatus.NEED_WRAP && (data == null || handshaking)) break;
+
+                if (data != null) data.flip();
+                SSLEngineResult result = tls.wrap(data != null ? data : EMPTY, tlsOut);
+                if (data != null) {
+                    // The buffer of a file is kept for its next chunk.
+                    if (data.hasRemaining() || head instanceof FileRegion) data.compact();
+                    else release(pending.poll());
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    throw new IOException("TLS record larger than the session allows");
+                }
+                if (result.bytesProduced() == 0 && result.bytesConsumed() == 0) break;
+            }
+            key.interestOps(suspended ? 0 : SelectionKey.OP_READ);
+            if (closeRequested && tls.isOutboundDone()) terminate();
+        }
+
+        private void terminate() {
+            if (!channel.isOpen()) return;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            while (!pending.isEmpty()) release(pending.poll());
+            try {
+                session.closed(this);
+            } catch (RuntimeException e) {
+                System.err.println("Error closing a client's session.");
+                e.printStackTrace();
+            }
+        }
+
+        private void release(Object data) {
+            if (data instanceof FileRegion region) region.close();
+            else releaseBuffer((ByteBuffer) data);
+        }
+    }
+
+    /**
+     * A range of a file queued to be sent on a connection, with the position up to which it has been sent, or read on
+     * a secured connection.
+     */
+    private class FileRegion {
+
+        private final FileChannel file;
+        private final long end;
+        private final Runnable sent;
+        private long position;
+        // Data read from the file and not encrypted yet, on a secured connection.
+        private ByteBuffer chunk;
+
+        private FileRegion(FileChannel file, long position, long end, Runnable sent) {
+            this.file = file;
+            this.position = position;
+            this.end = end;
+            this.sent = sent;
+        }
+
+        /**
+         * Sends as much of the region as the socket accepts.
+         *
+         * @return true if the whole region has been sent, false if the socket's send buffer is full.
+         */
+        private boolean transferTo(SocketChannel channel) throws IOException {
+            while (position < end) {
+                long count = file.transferTo(position, end - position, channel);
+                if (count == 0) return false;
+                position += count;
+            }
+            return true;
+        }
+
+        /**
+         * Reads the next chunk of the region into its buffer, unless the buffer still holds data to encrypt.
+         *
+         * @return The buffer, with the data after its position, or null once the whole region has been read and
+         * encrypted.
+         */
+        private ByteBuffer read() throws IOException {
+            if (chunk == null) chunk = acquireBuffer();
+            if (chunk.position() == 0 && position < end) {
+                chunk.limit((int) Math.min(chunk.capacity(), end - position));
+                int count = file.read(chunk, position);
+                chunk.limit(chunk.capacity());
+                if (count < 0) throw new IOException("File shorter than the range to send");
+                position += count;
+            }
+            return chunk.position() > 0 ? chunk : null;
+        }
+
+        private void close() {
+            if (chunk != null) releaseBuffer(chunk);
+            chunk = null;
+            sent.run();
+        }
+    }
+
+    /**
+     * An event loop, owning a selector and all the connections registered with it.
+     */
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        private void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                try {
+                    selector.select();
+                    openRegistered();
+
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error in event loop.");
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Runs the tasks handed to the loop by other threads. A failing task is reported without stopping the loop.
+         */
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Error in event loop task.");
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void openRegistered() {
+            SocketChannel channel;
+            while ((channel = registrations.poll()) != null) {
+                Connection connection = null;
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    connection = new Connection(this, channel, key, sessions.get());
+                    key.attach(connection);
+                    connection.session.opened(connection);
+                    connection.flush();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Error setting up an individual client's handler.");
+                    e.printStackTrace();
+                    if (connection != null) connection.terminate();
+                    else closeQuietly(channel);
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isValid() && key.isWritable()) connection.flush();
+                if (key.isValid() && key.isReadable()) {
+                    readBuffer.clear();
+                    int count = connection.channel.read(readBuffer);
+                    if (count < 0) {
+                        connection.terminate();
+                        return;
+                    }
+                    readBuffer.flip();
+                    if (connection.tls != null) connection.receivedTls(readBuffer);
+                    else connection.received(readBuffer);
+                    connection.flush();
+                }
+            } catch (ClosedChannelException e) {
+                connection.terminate();
+            } catch (IOException | RuntimeException e) {
+                // A failing session only loses its own connection, not the others on the loop.
+                System.err.println("Error in client's connection handling.");
+                e.printStackTrace();
+                connection.terminate();
+            }
+        }
+
+        private void closeQuietly(SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relays messages addressed to configured non-local domains to other SMTP servers. Messages are queued in a
+ * {@link Spool}, whose workers group the recipients of each message by destination server and send it over pooled
+ * {@link SmtpClient} connections. A connection is reused for many messages, up to a limit, and each destination only
+ * gets a limited number of concurrent connections. Recipients refused temporarily, or whose server cannot be reached,
+ * are attempted again by the spool with an exponential backoff.
+ * <p>
+ * The relay is enabled by the {@code relay.domains} system property, a comma-separated list of domains, and keeps its
+ * queue in the {@code relay.dir} directory. Messages go to the server named by {@code relay.smarthost}, or else by
+ * {@code relay.route.<domain>}, or else to the domain itself, each as {@code host[:port]}. The other properties are
+ * {@code relay.workers} (default 8), {@code relay.maxConnectionsPerDestination} (default 4),
+ * {@code relay.maxMessagesPerConnection} (default 100), {@code relay.idleSeconds} (default 30),
+ * {@code relay.timeoutSeconds} (default 60), {@code relay.maxAttempts} (default 10), {@code relay.retrySeconds}
+ * (default 60) and {@code relay.statusSeconds} (default 60, 0 to disable).
+ */
+public class Relay {
+
+    /** Smallest number of recipients per transaction all servers must accept (RFC 5321, section 4.5.3.1.8). */
+    private static final int MAX_RECIPIENTS_PER_TRANSACTION = 100;
+
+    private final Map<String, String> routes;
+    private final int maxConnectionsPerDestination;
+    private final int maxMessagesPerConnection;
+    private final long idleNanos;
+    private final int timeoutMillis;
+    private final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+    private final Spool spool;
+
+    /**
+     * Creates a relay, and starts delivering the messages already queued.
+     *
+     * @param dir                          The directory of the relay queue.
+     * @param routes                       The server, as {@code host[:port]}, of every relayed domain.
+     * @param workers                      Number of messages relayed concurrently.
+     * @param maxConnectionsPerDestination Maximum number of concurrent connections to a server.
+     * @param maxMessagesPerConnection     Number of messages sent over a connection before it is closed.
+     * @param idleSeconds                  Time an unused connection is kept open.
+     * @param timeoutSeconds               Timeout to connect to a server and to wait for each of its replies.
+     * @param maxAttempts                  Number of attempts before a message is set aside.
+     * @param retrySeconds                 Delay before the second attempt, doubled for every following attempt.
+     */
+    public Relay(Path dir, Map<String, String> routes, int workers, int maxConnectionsPerDestination,
+                 int maxMessagesPerConnection, long idleSeconds, int timeoutSeconds, int maxAttempts,
+                 long retrySeconds) {
+        this.routes = Map.copyOf(routes);
+        this.maxConnectionsPerDestination = Math.max(maxConnectionsPerDestination, 1);
+        this.maxMessagesPerConnection = Math.max(maxMessagesPerConnection, 1);
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        this.timeoutMillis = (int) TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        this.spool = new Spool("relay", dir, this::deliver, workers, maxAttempts, retrySeconds, TimeUnit.SECONDS,
+                null);
+
+        Thread sweeper = new Thread(this::closeIdleConnections, "relay-idle-connections");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /**
+     * @return The relay used by all the sessions of this process, or null if relaying is not enabled.
+     */
+    public static Relay getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * @return The queue of messages waiting to be relayed.
+     */
+    public Spool getSpool() {
+        return spool;
+    }
+
+    /**
+     * @param address An email address.
+     * @return true if messages to this address are relayed to another server.
+     */
+    public boolean isRelayed(String address) {
+        return routes.containsKey(domain(address));
+    }
+
+    /**
+     * Starts receiving a message, delivering it to the local recipients through the {@link MessageStore} and queueing
+     * it for the relayed ones. The message is delivered and queued when the returned writer is closed.
+     *
+     * @param sender     The envelope sender of the message, empty for the null reverse path.
+     * @param body       The body type declared by the client, {@code 8BITMIME} or {@code BINARYMIME}, or null for
+     *                   plain 7-bit text.
+     * @param recipients The recipients of the message, local or relayed.
+     * @return A writer receiving the content of the message.
+     * @throws IOException If the message cannot be delivered or queued.
+     */
+    public Writer open(String sender, String body, List<String> recipients) throws IOException {
+        List<String> local = new ArrayList<>();
+        List<String> relayed = new ArrayList<>();
+        for (String recipient : recipients) (isRelayed(recipient) ? relayed : local).add(recipient);
+
+        if (relayed.isEmpty()) return MessageStore.getInstance().open(local);
+        Writer queued = spool.open(sender, body, relayed);
+        if (local.isEmpty()) return queued;
+        return new TeeWriter(MessageStore.getInstance().open(local), queued);
+    }
+
+    /**
+     * Sends a queued message to the servers of its recipients.
+     */
+    private List<String> deliver(String sender, String body, List<String> recipients, Path content) {
+        Map<String, List<String>> byRoute = new LinkedHashMap<>();
+        for (String recipient : recipients) {
+            byRoute.computeIfAbsent(routes.get(domain(recipient)), route -> new ArrayList<>()).add(recipient);
+        }
+
+        List<String> retry = new ArrayList<>();
+        for (Map.Entry<String, List<String>> group : byRoute.entrySet()) {
+            List<String> all = group.getValue();
+            if (group.getKey() == null) {
+                // The domain is no longer relayed.
+                System.err.println("No route to relay to " + all + ", dropping.");
+                continue;
+            }
+            Destination destination = destinations.computeIfAbsent(group.getKey(), Destination::new);
+            for (int i = 0; i < all.size(); i += MAX_RECIPIENTS_PER_TRANSACTION) {
+                List<String> batch = all.subList(i, Math.min(i + MAX_RECIPIENTS_PER_TRANSACTION, all.size()));
+                retry.addAll(destination.send(sender == null ? "" : sender, body, batch, content));
+            }
+        }
+        return retry;
+    }
+
+    private void closeIdleConnections() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(idleNanos, TimeUnit.SECONDS.toNanos(1)));
+            } catch (InterruptedException e) {
+                // The sweeper runs for the life of the process.
+            }
+            for (Destination destination : destinations.values()) destination.closeIdleConnections();
+        }
+    }
+
+    private static String domain(String address) {
+        return address.substring(address.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * A server messages are relayed to, with its pool of connections.
+     */
+    private class Destination {
+
+        private final String route;
+        private final Semaphore connections = new Semaphore(maxConnectionsPerDestination, true);
+        private final Deque<SmtpClient> idle = new ArrayDeque<>();
+
+        private Destination(String route) {
+            this.route = route;
+        }
+
+        /**
+         * Sends a message over a pooled connection, or a new one if none is available.
+         *
+         * @return The recipients that must be attempted again.
+         */
+        private List<String> send(String sender, String body, List<String> recipients, Path content) {
+            try {
+                connections.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return recipients;
+            }
+            try {
+                while (true) {
+                    SmtpClient client = borrow();
+                    boolean pooled = client != null;
+                    try {
+                        if (client == null) client = connect();
+                        List<String> retry = client.send(sender, body, recipients, content);
+                        release(client);
+                        return retry;
+                    } catch (IOException e) {
+                        if (client != null) client.close();
+                        // A pooled connection may have been closed by the server while idle, so another is tried.
+                        if (pooled) continue;
+                        System.err.println("Could not relay to " + route + ": " + e.getMessage());
+                        return recipients;
+                    }
+                }
+            } finally {
+                connections.release();
+            }
+        }
+
+        private SmtpClient connect() throws IOException {
+            int colon = route.lastIndexOf(':');
+            String host = colon < 0 ? route : route.substring(0, colon);
+            int port = colon < 0 ? 25 : Integer.parseInt(route.substring(colon + 1));
+            return new SmtpClient(route, new InetSocketAddress(host, port), MySMTPServer.getHostName(),
+                    timeoutMillis);
+        }
+
+        private SmtpClient borrow() {
+            synchronized (idle) {
+                return idle.pollFirst();
+            }
+        }
+
+        private void release(SmtpClient client) {
+            if (client.isUsable() && client.getTransactions() < maxMessagesPerConnection) {
+                synchronized (idle) {
+                    // The most recently used connections are reused first, so the others can expire.
+                    idle.addFirst(client);
+                }
+            } else {
+                client.close();
+            }
+        }
+
+        private void closeIdleConnections() {
+            List<SmtpClient> expired = new ArrayList<>();
+            long now = System.nanoTime();
+            synchronized (idle) {
+                for (Iterator<SmtpClient> it = idle.iterator(); it.hasNext(); ) {
+                    SmtpClient client = it.next();
+                    if (now - client.getLastUsed() > idleNanos) {
+                        it.remove();
+                        expired.add(client);
+                    }
+                }
+            }
+            for (SmtpClient client : expired) client.close();
+        }
+    }
+
+    /**
+     * Writes the content of a message to the local mailboxes and to the relay queue at the same time.
+     */
+    private static class TeeWriter extends Writer implements MessageStore.Abortable {
+
+        private final Writer local;
+        private final Writer relayed;
+
+        private TeeWriter(Writer local, Writer relayed) {
+            this.local = local;
+            this.relayed = relayed;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            local.write(cbuf, off, len);
+            relayed.write(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            local.flush();
+            relayed.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                local.close();
+            } catch (IOException e) {
+                // The client is told the message was not accepted and will send it again, so it is not relayed.
+                MessageStore.abort(relayed);
+                throw e;
+            }
+            relayed.close();
+        }
+
+        @Override
+        public void abort() {
+            MessageStore.abort(local);
+            MessageStore.abort(relayed);
+        }
+    }
+
+    private static final class Holder {
+
+        private static final Relay INSTANCE = create();
+
+        private static Relay create() {
+            String domains = System.getProperty("relay.domains");
+            if (domains == null || domains.isBlank()) return null;
+            String dir = System.getProperty("relay.dir");
+            if (dir == null) throw new RuntimeException("relay.dir must name the relay queue directory.");
+
+            String smarthost = System.getProperty("relay.smarthost");
+            Map<String, String> routes = new HashMap<>();
+            for (String domain : domains.split(",")) {
+                domain = domain.trim().toLowerCase(Locale.ROOT);
+                if (domain.isEmpty()) continue;
+                routes.put(domain, smarthost != null ? smarthost : System.getProperty("relay.route." + domain, domain));
+            }
+
+            Relay relay = new Relay(Paths.get(dir), routes, Integer.getInteger("relay.workers", 8),
+                    Integer.getInteger("relay.maxConnectionsPerDestination", 4),
+                    Integer.getInteger("relay.maxMessagesPerConnection", 100), Long.getLong("relay.idleSeconds", 30),
+                    Integer.getInteger("relay.timeoutSeconds", 60), Integer.getInteger("relay.maxAttempts", 10),
+                    Long.getLong("relay.retrySeconds", 60));
+            long status = Long.getLong("relay.statusSeconds", 60);
+            if (status > 0) relay.getSpool().reportEvery(status, TimeUnit.SECONDS);
+            System.out.println("Relaying " + routes.keySet() + " through the " + relay.getSpool());
+            return relay;
+        }
+    }
+}
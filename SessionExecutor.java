@@ -0,0 +1,158 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs client sessions for the mail servers, either on platform threads or on virtual threads, while keeping the
+ * number of concurrent sessions under a configurable limit.
+ * <p>
+ * The behaviour is selected with system properties, using the server name as a prefix (e.g. {@code smtp} or
+ * {@code pop}):
+ * <ul>
+ *     <li>{@code <name>.execution}: {@code virtual} or {@code platform} (default {@code platform});</li>
+ *     <li>{@code <name>.maxSessions}: maximum number of sessions running at the same time (default unlimited);</li>
+ *     <li>{@code <name>.whenFull}: {@code block} to hold new connections in the accept queue until a session ends,
+ *     or {@code reject} to turn them away immediately (default {@code block}).</li>
+ * </ul>
+ * Virtual threads are looked up at runtime, so the servers still run on JVMs that do not provide them; in that case
+ * platform threads are used instead and a warning is printed.
+ */
+public class SessionExecutor {
+
+    public enum Mode { PLATFORM, VIRTUAL }
+
+    public enum FullPolicy { BLOCK, REJECT }
+
+    private final String name;
+    private final Mode mode;
+    private final FullPolicy policy;
+    private final int maxSessions;
+    private final Semaphore permits;
+    private final ThreadFactory factory;
+
+    /**
+     * Creates an executor for sessions.
+     *
+     * @param name        Name of the server, used for thread names.
+     * @param mode        Type of thread used to run each session.
+     * @param maxSessions Maximum number of concurrent sessions, or a non-positive value for no limit.
+     * @param policy      What to do with a new session when the limit has been reached.
+     */
+    public SessionExecutor(String name, Mode mode, int maxSessions, FullPolicy policy) {
+        this.name = name;
+        this.policy = policy;
+        this.maxSessions = maxSessions > 0 ? maxSessions : Integer.MAX_VALUE;
+        this.permits = new Semaphore(this.maxSessions);
+
+        ThreadFactory virtual = mode == Mode.VIRTUAL ? virtualThreadFactory(name) : null;
+        if (mode == Mode.VIRTUAL && virtual == null) {
+            System.err.println("Virtual threads are not available in this JVM, using platform threads.");
+        }
+        this.mode = virtual != null ? Mode.VIRTUAL : Mode.PLATFORM;
+        this.factory = virtual != null ? virtual : platformThreadFactory(name);
+    }
+
+    /**
+     * Creates an executor configured from the system properties prefixed with the given server name.
+     *
+     * @param name Name of the server, used as the property prefix and for thread names.
+     * @return The configured executor.
+     */
+    public static SessionExecutor fromSystemProperties(String name) {
+        return fromSystemProperties(name, name, 1);
+    }
+
+    /**
+     * Creates one of several executors sharing the configuration of a server, such as one per acceptor thread. Each
+     * executor gets an equal share of the session limit, rounded up.
+     *
+     * @param name  Name of the server, used as the property prefix.
+     * @param index Index of the executor among the others, used for thread names.
+     * @param count Number of executors sharing the configuration.
+     * @return The configured executor.
+     */
+    public static SessionExecutor fromSystemProperties(String name, int index, int count) {
+        return fromSystemProperties(name, name + "-" + (index + 1), count);
+    }
+
+    private static SessionExecutor fromSystemProperties(String name, String threadName, int count) {
+        Mode mode = Mode.valueOf(System.getProperty(name + ".execution", "platform").toUpperCase());
+        int maxSessions = Integer.getInteger(name + ".maxSessions", 0);
+        FullPolicy policy = FullPolicy.valueOf(System.getProperty(name + ".whenFull", "block").toUpperCase());
+        return new SessionExecutor(threadName, mode, maxSessions > 0 ? (maxSessions + count - 1) / count : 0, policy);
+    }
+
+    /**
+     * Starts a session, subject to the concurrent session limit. Depending on the policy, this call either waits for
+     * another session to finish or returns immediately when the limit has been reached.
+     *
+     * @param session The session to run.
+     * @return true if the session was started, false if it was refused and the caller must close the connection.
+     */
+    public boolean submit(Runnable session) {
+        try {
+            if (policy == FullPolicy.REJECT) {
+                if (!permits.tryAcquire()) return false;
+            } else {
+                permits.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        try {
+            factory.newThread(() -> {
+                try {
+                    session.run();
+                } finally {
+                    permits.release();
+                }
+            }).start();
+            return true;
+        } catch (RuntimeException | OutOfMemoryError e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of sessions currently running.
+     */
+    public int activeSessions() {
+        return maxSessions - permits.availablePermits();
+    }
+
+    @Override
+    public String toString() {
+        return name + " sessions on " + mode.name().toLowerCase() + " threads, max "
+                + (maxSessions == Integer.MAX_VALUE ? "unlimited" : String.valueOf(maxSessions))
+                + " (" + policy.name().toLowerCase() + " when full)";
+    }
+
+    private static ThreadFactory platformThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, name + "-" + count.incrementAndGet());
+    }
+
+    /**
+     * Builds a factory of virtual threads through reflection, equivalent to
+     * {@code Thread.ofVirtual().name(name + "-", 1).factory()}.
+     *
+     * @return The factory, or null if the running JVM does not support virtual threads.
+     */
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
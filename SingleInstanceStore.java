@@ -0,0 +1,348 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.MailMessage;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed message store. The content of a message is written once to {@code <root>/.objects/<sha-256>},
+ * and every recipient's mailbox directory {@code <root>/<user>} gets a hard link to it, so a message sent to many
+ * users costs one write and one copy on disk. Identical messages delivered later share the same object.
+ * <p>
+ * The link count of the object file is its reference count: removing a message from a mailbox unlinks one reference,
+ * and the object itself is removed by {@link #deleteMessagesTaggedForDeletion(Mailbox)} once the store holds the only
+ * remaining link. Objects left unreferenced by a crash are removed when the store starts. On file systems without hard
+ * links, each mailbox gets a copy instead.
+ * <p>
+ * Deliveries and removals are recorded in a {@link MailboxIndex} kept in {@code <root>/.index}, which gives the
+ * number and size of the messages in a mailbox without listing its directory.
+ * <p>
+ * When created with a {@link GroupCommit}, a delivery is only complete once the object and the directories of every
+ * mailbox it was linked into have been forced to disk, so the session can report it as durable. A delivery that
+ * cannot be forced to disk is removed from the mailboxes again, since the client will retry it.
+ */
+public class SingleInstanceStore implements MessageStore {
+
+    private static final String OBJECTS = ".objects";
+    private static final String INDEX = ".index";
+    private static final String TEMP_PREFIX = "tmp-";
+
+    private final Path root;
+    private final Path objects;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Object, Path> objectsByFileKey = new ConcurrentHashMap<>();
+    private final GroupCommit groupCommit;
+    private final MailboxIndex index;
+
+    /**
+     * Creates a store in the given mailbox directory, and removes objects that are no longer referenced.
+     *
+     * @param root        The directory containing one subdirectory per mailbox.
+     * @param groupCommit Used to make deliveries durable, or null if the store does not force them to disk.
+     */
+    public SingleInstanceStore(Path root, GroupCommit groupCommit) {
+        this.root = root;
+        this.groupCommit = groupCommit;
+        this.objects = root.resolve(OBJECTS);
+        try {
+            Files.createDirectories(objects);
+            this.index = new MailboxIndex(root, root.resolve(INDEX));
+            sweep();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open the message store in " + root + ".", e);
+        }
+    }
+
+    @Override
+    public Writer open(List<String> recipients) throws IOException {
+        Path temp = objects.resolve(TEMP_PREFIX + System.nanoTime() + "-" + sequence.incrementAndGet());
+        return QuotaIndex.getInstance().track(recipients, new ObjectWriter(temp, recipients));
+    }
+
+    @Override
+    public long mailboxSize(String user) {
+        MailboxIndex.Summary summary = summary(user);
+        return summary == null ? -1 : summary.getOctets();
+    }
+
+    @Override
+    public MailboxIndex.Summary summary(String user) {
+        try {
+            return index.summary(user);
+        } catch (IOException e) {
+            System.err.println("Could not read the index of " + user + ": " + e);
+            return null;
+        }
+    }
+
+    @Override
+    public void deleteMessagesTaggedForDeletion(Mailbox mailbox) {
+        List<Path> files = new ArrayList<>();
+        for (int i = 1; i <= mailbox.size(true); i++) {
+            MailMessage message = mailbox.getMailMessage(i);
+            if (message.isDeleted()) files.add(message.getFile().toPath());
+        }
+        remove(files, mailbox::deleteMessagesTaggedForDeletion);
+    }
+
+    @Override
+    public void expunge(List<Path> files) {
+        remove(files, () -> MessageStore.super.expunge(files));
+    }
+
+    /**
+     * Removes messages from their mailboxes and from the index, and reclaims the objects no mailbox links to anymore.
+     *
+     * @param files  The files of the messages, in any mailbox.
+     * @param unlink Removes the files.
+     */
+    private void remove(List<Path> files, Runnable unlink) {
+        // The objects must be identified before the links to them are gone.
+        List<Path> released = new ArrayList<>();
+        Map<String, List<String>> removed = new HashMap<>();
+        for (Path file : files) {
+            Object key = fileKey(file);
+            Path object = key == null ? null : objectsByFileKey.get(key);
+            if (object != null) released.add(object);
+            removed.computeIfAbsent(file.getParent().getFileName().toString(), user -> new ArrayList<>())
+                    .add(file.getFileName().toString());
+        }
+
+        unlink.run();
+        removed.forEach(index::removed);
+        for (Path object : released) reclaim(object);
+    }
+
+    /**
+     * Removes an object if no mailbox links to it anymore.
+     */
+    private synchronized void reclaim(Path object) {
+        try {
+            if (linkCount(object) == 1) {
+                Object key = fileKey(object);
+                Files.deleteIfExists(object);
+                if (key != null) objectsByFileKey.remove(key);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // Without a link count the object cannot be proven unused, so it is kept.
+        }
+    }
+
+    /**
+     * Removes temporary files left by interrupted deliveries and unreferenced objects, and indexes the others.
+     */
+    private void sweep() throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(objects)) {
+            for (Path entry : entries) {
+                if (entry.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                    Files.deleteIfExists(entry);
+                    continue;
+                }
+                Object key = fileKey(entry);
+                if (key != null) objectsByFileKey.put(key, entry);
+                reclaim(entry);
+            }
+        }
+    }
+
+    /**
+     * Moves a completed temporary file into the object directory under its content hash, reusing an identical object
+     * if there is one, and links it into every recipient's mailbox. The object is only copied into mailboxes on file
+     * systems that cannot link to it. If a mailbox cannot get the message, those that already got it lose it again.
+     *
+     * @return The files and directories changed, which must be forced to disk for the delivery to be durable.
+     */
+    private synchronized List<Path> publish(Path temp, String hash, String name, List<String> recipients)
+            throws IOException {
+        List<Path> changed = new ArrayList<>();
+        Path object = objects.resolve(hash);
+        if (Files.exists(object)) {
+            Files.delete(temp);
+        } else {
+            Files.move(temp, object, StandardCopyOption.ATOMIC_MOVE);
+            Object key = fileKey(object);
+            if (key != null) objectsByFileKey.put(key, object);
+            changed.add(objects);
+        }
+        changed.add(object);
+
+        List<Path> links = new ArrayList<>(recipients.size());
+        try {
+            for (String recipient : recipients) {
+                Path mailbox = root.resolve(recipient);
+                Files.createDirectories(mailbox);
+                Path link = mailbox.resolve(name);
+                try {
+                    Files.createLink(link, object);
+                } catch (UnsupportedOperationException e) {
+                    copy(object, link);
+                    changed.add(link);
+                } catch (FileSystemException e) {
+                    if (!cannotLink(e)) throw e;
+                    copy(object, link);
+                    changed.add(link);
+                }
+                links.add(link);
+                changed.add(mailbox);
+            }
+        } catch (IOException e) {
+            for (Path link : links) {
+                try {
+                    Files.deleteIfExists(link);
+                } catch (IOException ignored) {
+                    // Left for the user to remove; the delivery fails anyway.
+                }
+            }
+            reclaim(object);
+            throw e;
+        }
+        return changed;
+    }
+
+    /**
+     * Copies an object into a mailbox, removing the partial copy if it fails.
+     */
+    private static void copy(Path object, Path link) throws IOException {
+        try {
+            Files.copy(object, link);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (IOException e) {
+            Files.deleteIfExists(link);
+            throw e;
+        }
+    }
+
+    /**
+     * Tells whether creating a hard link failed because the file system cannot link to the object, rather than
+     * because of the link itself, such as an existing file or a missing permission.
+     */
+    private static boolean cannotLink(FileSystemException e) {
+        if (e.getClass() != FileSystemException.class || e.getReason() == null) return false;
+        String reason = e.getReason().toLowerCase(Locale.ROOT);
+        // EXDEV when the mailbox is on another file system, EPERM or ENOTSUP when it has no hard links.
+        return reason.contains("cross-device") || reason.contains("not permitted") || reason.contains("not supported");
+    }
+
+    private static int linkCount(Path path) throws IOException {
+        return (Integer) Files.getAttribute(path, "unix:nlink");
+    }
+
+    private static Object fileKey(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the content of a message to a temporary file while computing its hash, and publishes it on close. An
+     * aborted message is never hashed nor linked, and its temporary file is removed.
+     */
+    private class ObjectWriter extends Writer implements MessageStore.Abortable {
+
+        private final Path temp;
+        private final List<String> recipients;
+        private final MessageDigest digest;
+        private final Writer out;
+        private boolean closed = false;
+
+        private ObjectWriter(Path temp, List<String> recipients) throws IOException {
+            this.temp = temp;
+            // A recipient given twice gets the message once.
+            this.recipients = List.copyOf(new LinkedHashSet<>(recipients));
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            OutputStream file = new DigestOutputStream(Files.newOutputStream(temp), digest);
+            // Characters are narrowed back to the bytes received from the client.
+            this.out = new OutputStreamWriter(new BufferedOutputStream(file), StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            out.close();
+
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest()) hash.append(String.format("%02x", b & 0xff));
+            String name = System.currentTimeMillis() + "-" + sequence.incrementAndGet();
+            long size = Files.size(temp);
+            List<Path> changed;
+            try {
+                changed = publish(temp, hash.toString(), name, recipients);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            // Also outside of the lock; each mailbox has its own log.
+            for (String recipient : recipients) index.added(recipient, name, size);
+            // Outside of the store's lock, so other deliveries can join the same group.
+            if (groupCommit == null) return;
+            try {
+                groupCommit.await(changed);
+            } catch (IOException e) {
+                // The client is told the message was not accepted, and will send it again, so it must not stay in
+                // the mailboxes.
+                List<Path> links = new ArrayList<>(recipients.size());
+                for (String recipient : recipients) links.add(root.resolve(recipient).resolve(name));
+                expunge(links);
+                throw e;
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (closed) return;
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                // The file is removed anyway.
+            }
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                System.err.println("Could not remove " + temp + ": " + e);
+            }
+        }
+    }
+}
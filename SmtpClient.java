@@ -0,0 +1,314 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outgoing SMTP connection used to relay messages to another server. A connection can carry any number of mail
+ * transactions one after the other. When the server offers PIPELINING (RFC 2920), the MAIL, RCPT and DATA commands of
+ * a transaction are sent together, and their replies read afterwards, so a transaction only takes two round trips.
+ * <p>
+ * The body type of a message is declared with {@code BODY=} when the server offers 8BITMIME (RFC 6152) or BINARYMIME
+ * (RFC 3030). Binary messages are sent with a single {@code BDAT ... LAST} command, and are dropped if the server does
+ * not offer both BINARYMIME and CHUNKING, since they cannot be sent with DATA. 8-bit messages are sent as they are to
+ * servers without 8BITMIME, since this server does not convert them.
+ * <p>
+ * Not thread-safe: a connection is used by a single thread at a time.
+ */
+public class SmtpClient implements AutoCloseable {
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] END_OF_DATA = {'.', '\r', '\n'};
+
+    private final String destination;
+    private final Socket socket;
+    private final BufferedInputStream in;
+    private final BufferedOutputStream out;
+    private final StringBuilder reply = new StringBuilder();
+    private int code;
+    private boolean pipelining = false;
+    private boolean eightBitMime = false;
+    private boolean binaryMime = false;
+    private boolean chunking = false;
+    private boolean usable = true;
+    private int transactions = 0;
+    private long lastUsed = System.nanoTime();
+
+    /**
+     * Opens a connection to a server, and greets it.
+     *
+     * @param destination   Name of the destination, used in messages.
+     * @param address       Address of the server.
+     * @param heloName      Name of this host, sent in the EHLO command.
+     * @param timeoutMillis Timeout to connect and to wait for each reply, in milliseconds.
+     * @throws IOException If the connection cannot be established, or the server refuses it.
+     */
+    public SmtpClient(String destination, InetSocketAddress address, String heloName, int timeoutMillis)
+            throws IOException {
+        this.destination = destination;
+        this.socket = new Socket();
+        try {
+            socket.connect(address, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+
+            expect(readReply(), 2, "greeting");
+            send("EHLO " + heloName);
+            out.flush();
+            if (readReply() / 100 == 2) {
+                // The first line of the reply names the server, and each following line an extension.
+                String[] lines = reply.toString().split("\n");
+                for (int i = 1; i < lines.length; i++) {
+                    String keyword = lines[i].length() > 4 ? lines[i].substring(4).trim().split(" ")[0] : "";
+                    if (keyword.equalsIgnoreCase("PIPELINING")) pipelining = true;
+                    else if (keyword.equalsIgnoreCase("8BITMIME")) eightBitMime = true;
+                    else if (keyword.equalsIgnoreCase("BINARYMIME")) binaryMime = true;
+                    else if (keyword.equalsIgnoreCase("CHUNKING")) chunking = true;
+                }
+            } else {
+                send("HELO " + heloName);
+                out.flush();
+                expect(readReply(), 2, "HELO");
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the connection can carry another transaction.
+     */
+    public boolean isUsable() {
+        return usable && !socket.isClosed();
+    }
+
+    /**
+     * @return Number of transactions completed on this connection.
+     */
+    public int getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * @return Time the last transaction ended, as given by {@link System#nanoTime()}.
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Sends a message to some of its recipients. Recipients refused permanently by the server are dropped with an
+     * error message, since this server does not send delivery status notifications.
+     *
+     * @param sender     The envelope sender, empty for the null reverse path.
+     * @param body       The body type of the message, {@code 8BITMIME} or {@code BINARYMIME}, or null for plain 7-bit
+     *                   text.
+     * @param recipients The recipients handled by this server.
+     * @param content    The file containing the content of the message.
+     * @return The recipients refused temporarily, which must be attempted again.
+     * @throws IOException If the connection failed; the outcome is unknown for all recipients.
+     */
+    public List<String> send(String sender, String body, List<String> recipients, Path content) throws IOException {
+        boolean chunked = "BINARYMIME".equals(body);
+        if (chunked && !(binaryMime && chunking)) {
+            // Binary content cannot go through DATA (RFC 3030, section 3), and there is no delivery status
+            // notification to send back, so the message is dropped like one refused permanently.
+            System.err.println(destination + " does not accept binary content, dropping the message to "
+                    + recipients + ".");
+            return List.of();
+        }
+
+        usable = false;
+        List<String> accepted = new ArrayList<>();
+        List<String> retry = new ArrayList<>();
+        boolean declared = chunked || "8BITMIME".equals(body) && eightBitMime;
+        String mail = "MAIL FROM:<" + sender + ">" + (declared ? " BODY=" + body : "");
+
+        if (pipelining) {
+            // The whole transaction is sent at once, and the server replies to DATA even if it refused every
+            // recipient (RFC 2920, section 3.1). BDAT is only sent once a recipient has been accepted.
+            send(mail);
+            for (String recipient : recipients) send("RCPT TO:<" + recipient + ">");
+            if (!chunked) send("DATA");
+            out.flush();
+
+            if (readReply() / 100 != 2) {
+                refuse(recipients, retry);
+                for (int i = 0; i < recipients.size(); i++) readReply();
+                // A server accepting DATA after refusing MAIL would take any content, so the connection is dropped.
+                if (!chunked && readReply() == 354) {
+                    throw new IOException(destination + " accepted DATA after refusing MAIL");
+                }
+                return reset(retry);
+            }
+            for (String recipient : recipients) {
+                if (readReply() / 100 == 2) accepted.add(recipient);
+                else refuse(List.of(recipient), retry);
+            }
+            if (chunked && accepted.isEmpty()) return reset(retry);
+        } else {
+            send(mail);
+            out.flush();
+            if (readReply() / 100 != 2) {
+                refuse(recipients, retry);
+                return reset(retry);
+            }
+            for (String recipient : recipients) {
+                send("RCPT TO:<" + recipient + ">");
+                out.flush();
+                if (readReply() / 100 == 2) accepted.add(recipient);
+                else refuse(List.of(recipient), retry);
+            }
+            if (accepted.isEmpty()) return reset(retry);
+            if (!chunked) {
+                send("DATA");
+                out.flush();
+            }
+        }
+
+        if (chunked) {
+            sendChunk(content);
+        } else {
+            if (readReply() != 354) {
+                refuse(accepted, retry);
+                return reset(retry);
+            }
+            sendContent(content);
+        }
+        out.flush();
+        if (readReply() / 100 != 2) refuse(accepted, retry);
+        transactions++;
+        lastUsed = System.nanoTime();
+        usable = true;
+        return retry;
+    }
+
+    /**
+     * Ends the session politely, and closes the connection.
+     */
+    @Override
+    public void close() {
+        try (socket) {
+            if (usable) {
+                send("QUIT");
+                out.flush();
+                readReply();
+            }
+        } catch (IOException e) {
+            // The connection is closed anyway.
+        }
+        usable = false;
+    }
+
+    /**
+     * Abandons the current transaction, so the connection can be used for another one.
+     */
+    private List<String> reset(List<String> retry) throws IOException {
+        send("RSET");
+        out.flush();
+        if (readReply() / 100 == 2) {
+            lastUsed = System.nanoTime();
+            usable = true;
+        }
+        return retry;
+    }
+
+    /**
+     * Handles the refusal of recipients by the last reply read: permanently refused recipients are dropped, and the
+     * others must be attempted again.
+     */
+    private void refuse(List<String> recipients, List<String> retry) {
+        if (code / 100 == 5) {
+            System.err.println(destination + " refused " + recipients + ": " + reply.toString().trim());
+        } else {
+            retry.addAll(recipients);
+        }
+    }
+
+    /**
+     * Sends the content of a message, dot-stuffing lines that start with a period (RFC 5321, section 4.5.2), and
+     * terminates it with a line containing a single period.
+     */
+    private void sendContent(Path content) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        boolean lineStart = true;
+        int previous = '\n';
+        try (InputStream file = Files.newInputStream(content)) {
+            int count;
+            while ((count = file.read(buffer)) >= 0) {
+                int start = 0;
+                for (int i = 0; i < count; i++) {
+                    if (lineStart && buffer[i] == '.') {
+                        out.write(buffer, start, i - start);
+                        out.write('.');
+                        start = i;
+                    }
+                    lineStart = buffer[i] == '\n';
+                }
+                out.write(buffer, start, count - start);
+                if (count > 0) previous = buffer[count - 1];
+            }
+        }
+        if (previous != '\n') out.write(CRLF);
+        out.write(END_OF_DATA);
+    }
+
+    /**
+     * Sends the content of a message as it is, in a single {@code BDAT <size> LAST} command (RFC 3030, section 2).
+     */
+    private void sendChunk(Path content) throws IOException {
+        send("BDAT " + Files.size(content) + " LAST");
+        Files.copy(content, out);
+    }
+
+    private void send(String command) throws IOException {
+        out.write(command.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(CRLF);
+    }
+
+    private void expect(int code, int expected, String step) throws IOException {
+        if (code / 100 != expected) {
+            throw new IOException(destination + " refused the " + step + ": " + reply.toString().trim());
+        }
+    }
+
+    /**
+     * Reads a reply, possibly made of several lines, and keeps its text.
+     *
+     * @return The reply code.
+     * @throws IOException If the connection is closed or the reply is malformed.
+     */
+    private int readReply() throws IOException {
+        reply.setLength(0);
+        while (true) {
+            int start = reply.length();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) throw new EOFException(destination + " closed the connection");
+                if (b != '\r') reply.append((char) b);
+            }
+            reply.append('\n');
+            if (reply.length() - start < 4) throw new IOException(destination + " sent a malformed reply");
+
+            try {
+                code = Integer.parseInt(reply.substring(start, start + 3));
+            } catch (NumberFormatException e) {
+                throw new IOException(destination + " sent a malformed reply");
+            }
+            if (reply.charAt(start + 3) != '-') return code;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses SMTP command lines in place, without decoding or copying them. A session keeps one parser and hands it every
+ * command line it reads; the parser only records where the parts of the command are in the line, and a value is
+ * turned into a string only when a command needs it as one, such as the address of a recipient.
+ * <p>
+ * Verbs are matched case-insensitively by folding their four bytes into an int, which is compared against the verb
+ * constants of this class. STARTTLS, the only longer verb, is matched by its first four bytes and then the others.
+ */
+public class SmtpCommand {
+
+    public static final int UNKNOWN = 0;
+    public static final int HELO = 'H' << 24 | 'E' << 16 | 'L' << 8 | 'O';
+    public static final int EHLO = 'E' << 24 | 'H' << 16 | 'L' << 8 | 'O';
+    public static final int LHLO = 'L' << 24 | 'H' << 16 | 'L' << 8 | 'O';
+    public static final int MAIL = 'M' << 24 | 'A' << 16 | 'I' << 8 | 'L';
+    public static final int RCPT = 'R' << 24 | 'C' << 16 | 'P' << 8 | 'T';
+    public static final int DATA = 'D' << 24 | 'A' << 16 | 'T' << 8 | 'A';
+    public static final int BDAT = 'B' << 24 | 'D' << 16 | 'A' << 8 | 'T';
+    public static final int RSET = 'R' << 24 | 'S' << 16 | 'E' << 8 | 'T';
+    public static final int VRFY = 'V' << 24 | 'R' << 16 | 'F' << 8 | 'Y';
+    public static final int NOOP = 'N' << 24 | 'O' << 16 | 'O' << 8 | 'P';
+    public static final int QUIT = 'Q' << 24 | 'U' << 16 | 'I' << 8 | 'T';
+    public static final int STARTTLS = 'S' << 24 | 'T' << 16 | 'A' << 8 | 'R';
+
+    private byte[] line;
+    private int length;
+    private int argumentStart;
+
+    // Set by parsePath.
+    private int pathStart;
+    private int pathEnd;
+    private int parametersStart;
+
+    // Set by findParameter.
+    private int valueStart;
+    private int valueEnd;
+
+    /**
+     * Parses the verb of a command line, and locates its argument.
+     *
+     * @param line   Buffer containing the line, without its terminator.
+     * @param length Number of bytes of the line in the buffer.
+     * @return One of the verb constants of this class, or {@link #UNKNOWN}.
+     */
+    public int parse(byte[] line, int length) {
+        this.line = line;
+        this.length = length;
+        this.argumentStart = skipSpaces(Math.min(length, 4));
+
+        if (length < 4) return UNKNOWN;
+        int verb = 0;
+        for (int i = 0; i < 4; i++) verb = verb << 8 | upperCase(line[i]);
+        int verbLength = 4;
+        if (verb == STARTTLS) {
+            if (length < 8) return UNKNOWN;
+            for (int i = 4; i < 8; i++) {
+                if (upperCase(line[i]) != "STARTTLS".charAt(i)) return UNKNOWN;
+            }
+            verbLength = 8;
+            argumentStart = skipSpaces(8);
+        }
+        if (length > verbLength && !isSpace(line[verbLength])) return UNKNOWN;
+        switch (verb) {
+            case HELO: case EHLO: case LHLO: case MAIL: case RCPT: case DATA:
+            case BDAT: case RSET: case VRFY: case NOOP: case QUIT: case STARTTLS:
+                return verb;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    /**
+     * @return true if the command has a non-blank argument after its verb.
+     */
+    public boolean hasArgument() {
+        return argumentStart < length;
+    }
+
+    /**
+     * @return The argument of the command, or null if it has none.
+     */
+    public String argument() {
+        return hasArgument() ? decode(argumentStart, length) : null;
+    }
+
+    /**
+     * @param c The character to look for.
+     * @return true if the argument of the command contains the character.
+     */
+    public boolean argumentContains(char c) {
+        for (int i = argumentStart; i < length; i++) {
+            if (line[i] == c) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses a {@code FROM:<path>} or {@code TO:<path>} argument, followed by optional ESMTP parameters.
+     *
+     * @param prefix The keyword expected before the colon, in upper case.
+     * @return true if the argument is well formed.
+     */
+    public boolean parsePath(String prefix) {
+        int i = argumentStart;
+        if (length - i < prefix.length() + 3) return false;
+        for (int j = 0; j < prefix.length(); j++, i++) {
+            if (upperCase(line[i]) != prefix.charAt(j)) return false;
+        }
+        if (line[i++] != ':') return false;
+
+        i = skipSpaces(i);
+        if (i == length || line[i] != '<') return false;
+        pathStart = i + 1;
+        pathEnd = pathStart;
+        while (pathEnd < length && line[pathEnd] != '>') pathEnd++;
+        if (pathEnd == length) return false;
+
+        parametersStart = skipSpaces(pathEnd + 1);
+        return parametersStart == length || parametersStart > pathEnd + 1;
+    }
+
+    /**
+     * @return The address between the angle brackets of the last path parsed.
+     */
+    public String path() {
+        return decode(pathStart, pathEnd);
+    }
+
+    /**
+     * @return true if ESMTP parameters follow the last path parsed.
+     */
+    public boolean hasParameters() {
+        return parametersStart < length;
+    }
+
+    /**
+     * Looks for an ESMTP parameter following the last path parsed, and locates its value.
+     *
+     * @param name The name of the parameter, in upper case.
+     * @return true if the parameter is present with a value.
+     */
+    public boolean findParameter(String name) {
+        int i = parametersStart;
+        while (i < length) {
+            int end = i;
+            while (end < length && !isSpace(line[end])) end++;
+            if (end - i > name.length() && line[i + name.length()] == '=' && regionMatches(i, name)) {
+                valueStart = i + name.length() + 1;
+                valueEnd = end;
+                return true;
+            }
+            i = skipSpaces(end);
+        }
+        return false;
+    }
+
+    /**
+     * @param value The expected value, in upper case.
+     * @return true if the value of the last parameter found is equal to the given one, ignoring case.
+     */
+    public boolean valueEquals(String value) {
+        return valueEnd - valueStart == value.length() && regionMatches(valueStart, value);
+    }
+
+    /**
+     * @return The value of the last parameter found, as a non-negative number.
+     * @throws NumberFormatException If the value is not a non-negative decimal number.
+     */
+    public long numericValue() {
+        return parseNumber(valueStart, valueEnd);
+    }
+
+    /**
+     * Parses the size of a {@code BDAT <size> [LAST]} argument.
+     *
+     * @return The size of the chunk, or -1 if the argument is malformed.
+     */
+    public long chunkSize() {
+        int end = argumentStart;
+        while (end < length && !isSpace(line[end])) end++;
+        int last = skipSpaces(end);
+        if (last < length && (length - last != 4 || !regionMatches(last, "LAST"))) return -1;
+        try {
+            return parseNumber(argumentStart, end);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return true if the BDAT command is followed by the LAST keyword.
+     */
+    public boolean isLastChunk() {
+        return length - 4 >= argumentStart && regionMatches(length - 4, "LAST") && isSpace(line[length - 5]);
+    }
+
+    private long parseNumber(int start, int end) {
+        if (start == end || end - start > 18) throw new NumberFormatException("Not a valid number");
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (line[i] < '0' || line[i] > '9') throw new NumberFormatException("Not a valid number");
+            value = value * 10 + (line[i] - '0');
+        }
+        return value;
+    }
+
+    private boolean regionMatches(int start, String upperCase) {
+        for (int j = 0; j < upperCase.length(); j++) {
+            if (upperCase(line[start + j]) != upperCase.charAt(j)) return false;
+        }
+        return true;
+    }
+
+    private int skipSpaces(int i) {
+        while (i < length && isSpace(line[i])) i++;
+        return i;
+    }
+
+    private String decode(int start, int end) {
+        return new String(line, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int upperCase(byte b) {
+        return b >= 'a' && b <= 'z' ? b - ('a' - 'A') : b & 0xff;
+    }
+}
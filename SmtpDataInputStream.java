@@ -0,0 +1,118 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the content of an SMTP DATA command from the client's input stream. Works at the byte level: lines are never
+ * decoded, leading periods added by the client are removed (RFC 5321, section 4.5.2), and the stream ends at the line
+ * containing a single period, which is consumed but not returned. The CRLF before that line is part of the message.
+ * <p>
+ * The stream does not close the underlying stream, so the session can keep reading commands after the message.
+ */
+public class SmtpDataInputStream extends FilterInputStream {
+
+    private enum State { LINE_START, MIDDLE, DOT, DOT_CR, END }
+
+    private State state = State.LINE_START;
+    private int pending = -1;
+
+    /**
+     * Creates a stream reading one message from the client.
+     *
+     * @param in The client's input stream, positioned right after the DATA command line.
+     */
+    public SmtpDataInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (state == State.END) return -1;
+
+        int count = 0;
+        if (pending >= 0) {
+            buf[off + count++] = (byte) pending;
+            pending = -1;
+        }
+
+        // Only block for the first byte; after that, stop as soon as the underlying stream would block.
+        while (count < len && state != State.END && (count == 0 || in.available() > 0)) {
+            int b = in.read();
+            if (b < 0) throw new EOFException("Connection closed during DATA");
+
+            switch (state) {
+                case LINE_START:
+                    if (b == '.') {
+                        state = State.DOT;
+                        continue;
+                    }
+                    break;
+                case DOT:
+                    if (b == '\r') {
+                        state = State.DOT_CR;
+                        continue;
+                    }
+                    if (b == '\n') {
+                        state = State.END;
+                        continue;
+                    }
+                    break;
+                case DOT_CR:
+                    if (b == '\n') {
+                        state = State.END;
+                        continue;
+                    }
+                    // Not the terminator after all: the CR belongs to the line, followed by this byte.
+                    buf[off + count++] = '\r';
+                    if (count == len) {
+                        pending = b;
+                        state = next(b);
+                        return count;
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            buf[off + count++] = (byte) b;
+            state = next(b);
+        }
+        return count == 0 && state == State.END ? -1 : count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return state == State.END ? 0 : (pending >= 0 ? 1 : 0);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] discard = new byte[(int) Math.min(n, 8192)];
+        int count = read(discard, 0, discard.length);
+        return Math.max(count, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        // The underlying stream belongs to the session.
+    }
+
+    private static State next(int b) {
+        return b == '\n' ? State.LINE_START : State.MIDDLE;
+    }
+}
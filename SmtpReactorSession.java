@@ -0,0 +1,329 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SMTP state machine for the non-blocking {@link Reactor} engine. Implements the same commands and replies as
+ * {@link MySMTPServer}, but is driven by lines pushed from the event loop instead of reading from the socket, so the
+ * message body is collected line by line while in the DATA phase. Lines are parsed at the byte level, as they arrive
+ * from the event loop, and replies come from the pre-encoded {@link SmtpReplies}.
+ */
+public class SmtpReactorSession implements Reactor.Session {
+
+    private final AdmissionControl admission;
+    private final SmtpCommand command = new SmtpCommand();
+    private char[] chars = new char[256];
+    private AdmissionControl.Permit permit;
+    private TimingWheel.Timeout idleTimeout;
+    private TimingWheel.Timeout transactionTimeout;
+    private MySMTPServer.State state = MySMTPServer.State.INIT;
+    private String sender;
+    private List<String> reciver = new ArrayList<>();
+    private long declaredSize = -1;
+    private Writer data = null;
+    private long dataSize = 0;
+    private boolean dataFailed = false;
+
+    /**
+     * Creates a session for a new connection.
+     *
+     * @param admission Decides whether the connection is accepted and limits its rate of commands and messages.
+     */
+    public SmtpReactorSession(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    @Override
+    public void opened(Reactor.Connection connection) {
+        permit = admission.admit(connection.getInetAddress());
+        if (permit == null) {
+            connection.write(SmtpReplies.TOO_MANY_CONNECTIONS);
+            connection.close();
+            return;
+        }
+        idleTimeout = TimingWheel.shared().schedule(connection::abort, MySMTPServer.GREETING_TIMEOUT, TimeUnit.SECONDS);
+        connection.write(SmtpReplies.READY);
+    }
+
+    @Override
+    public void closed(Reactor.Connection connection) {
+        if (idleTimeout != null) idleTimeout.cancel();
+        if (transactionTimeout != null) transactionTimeout.cancel();
+        if (permit != null) permit.close();
+        // A message still in progress when the connection ends is never completed.
+        MessageStore.abort(data);
+        data = null;
+    }
+
+    @Override
+    public void lineReceived(Reactor.Connection connection, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+        lineReceived(connection, bytes, bytes.length);
+    }
+
+    @Override
+    public void lineReceived(Reactor.Connection connection, byte[] line, int length) {
+        if (data != null) {
+            idleTimeout.reset(MySMTPServer.DATA_BLOCK_TIMEOUT, TimeUnit.SECONDS);
+            handleDataLine(connection, line, length);
+            return;
+        }
+
+        if (length == 0) return;
+
+        idleTimeout.reset(MySMTPServer.COMMAND_TIMEOUT, TimeUnit.SECONDS);
+        if (!permit.tryCommand()) {
+            connection.write(SmtpReplies.TOO_MANY_COMMANDS);
+            connection.close();
+            return;
+        }
+
+        switch (command.parse(line, length)) {
+            case SmtpCommand.HELO:
+                handleHeloCommand(connection, SmtpReplies.HELO);
+                break;
+            case SmtpCommand.EHLO:
+                handleHeloCommand(connection, canStartTls(connection) ? SmtpReplies.EHLO_BASIC_STARTTLS
+                        : SmtpReplies.EHLO_BASIC);
+                break;
+            case SmtpCommand.MAIL:
+                handleMailCommand(connection);
+                break;
+            case SmtpCommand.RCPT:
+                handleRcptCommand(connection);
+                break;
+            case SmtpCommand.DATA:
+                handleDataCommand(connection);
+                break;
+            case SmtpCommand.RSET:
+                endTransaction();
+                connection.write(SmtpReplies.OK);
+                break;
+            case SmtpCommand.VRFY:
+                handleVrfyCommand(connection);
+                break;
+            case SmtpCommand.NOOP:
+                connection.write(SmtpReplies.OK);
+                break;
+            case SmtpCommand.QUIT:
+                connection.write(SmtpReplies.CLOSING);
+                state = MySMTPServer.State.QUIT;
+                connection.close();
+                break;
+            case SmtpCommand.STARTTLS:
+                handleStartTlsCommand(connection);
+                break;
+            default:
+                connection.write(SmtpReplies.NOT_IMPLEMENTED);
+                break;
+        }
+    }
+
+    /**
+     * Handles HELO and EHLO, which only differ by their reply.
+     */
+    private void handleHeloCommand(Reactor.Connection connection, byte[] reply) {
+        if (state != MySMTPServer.State.INIT) {
+            connection.write(SmtpReplies.BAD_SEQUENCE);
+            return;
+        }
+
+        if (!command.hasArgument()) {
+            connection.write(SmtpReplies.SYNTAX_ERROR);
+            return;
+        }
+
+        state = MySMTPServer.State.HELO;
+        connection.write(reply);
+    }
+
+    private static boolean canStartTls(Reactor.Connection connection) {
+        return !connection.isSecure() && Tls.getInstance() != null;
+    }
+
+    /**
+     * Switches the connection to TLS (RFC 3207) once the reply is sent. The session starts over, so the client must
+     * greet the server again.
+     */
+    private void handleStartTlsCommand(Reactor.Connection connection) {
+        if (command.hasArgument()) {
+            connection.write(SmtpReplies.SYNTAX_ERROR);
+            return;
+        }
+
+        if (!canStartTls(connection)) {
+            connection.write(connection.isSecure() ? SmtpReplies.BAD_SEQUENCE : SmtpReplies.NOT_IMPLEMENTED);
+            return;
+        }
+
+        if (state != MySMTPServer.State.INIT && state != MySMTPServer.State.HELO) {
+            connection.write(SmtpReplies.BAD_SEQUENCE);
+            return;
+        }
+
+        connection.write(SmtpReplies.READY_TO_START_TLS);
+        connection.startTls(Tls.getInstance().createEngine());
+        endTransaction();
+        state = MySMTPServer.State.INIT;
+    }
+
+    private void handleMailCommand(Reactor.Connection connection) {
+        if (state != MySMTPServer.State.HELO) {
+            connection.write(SmtpReplies.BAD_SEQUENCE);
+            return;
+        }
+
+        if (!command.parsePath("FROM")) {
+            connection.write(SmtpReplies.SYNTAX_ERROR);
+            return;
+        }
+        String from = command.path();
+
+        try {
+            declaredSize = command.findParameter("SIZE") ? command.numericValue() : -1;
+        } catch (NumberFormatException e) {
+            connection.write(SmtpReplies.SYNTAX_ERROR);
+            return;
+        }
+
+        if (declaredSize > MySMTPServer.MAX_MESSAGE_SIZE) {
+            connection.write(SmtpReplies.SIZE_EXCEEDED);
+            return;
+        }
+
+        if (!permit.tryMessage()) {
+            connection.write(SmtpReplies.TOO_MANY_MESSAGES);
+            connection.close();
+            return;
+        }
+
+        transactionTimeout = TimingWheel.shared().schedule(connection::abort, MySMTPServer.TRANSACTION_TIMEOUT,
+                TimeUnit.SECONDS);
+        sender = from;
+        state = MySMTPServer.State.MAIL;
+        connection.write(SmtpReplies.OK);
+    }
+
+    private void handleRcptCommand(Reactor.Connection connection) {
+        if (state != MySMTPServer.State.MAIL && state != MySMTPServer.State.RCPT) {
+            connection.write(SmtpReplies.BAD_SEQUENCE);
+            return;
+        }
+
+        if (!command.parsePath("TO") || command.hasParameters()) {
+            connection.write(SmtpReplies.SYNTAX_ERROR);
+            return;
+        }
+
+        String recipient = command.path();
+        Relay relay = Relay.getInstance();
+        boolean relayed = relay != null && relay.isRelayed(recipient);
+        if (!relayed && !UserDirectory.getInstance().isValidUser(recipient)) {
+            connection.write(SmtpReplies.NO_SUCH_USER);
+            return;
+        }
+
+        // Refused before the content is received, using the size declared in MAIL if any.
+        if (!relayed && !QuotaIndex.getInstance().accepts(recipient, declaredSize)) {
+            connection.write(SmtpReplies.MAILBOX_FULL);
+            return;
+        }
+
+        state = MySMTPServer.State.RCPT;
+        reciver.add(recipient);
+        connection.write(SmtpReplies.OK);
+    }
+
+    private void handleDataCommand(Reactor.Connection connection) {
+        if (state != MySMTPServer.State.RCPT) {
+            connection.write(SmtpReplies.BAD_SEQUENCE);
+            return;
+        }
+
+        try {
+            Relay relay = Relay.getInstance();
+            data = relay == null ? MessageStore.getInstance().open(reciver) : relay.open(sender, null, reciver);
+        } catch (IOException e) {
+            connection.write(SmtpReplies.ABORTED);
+            return;
+        }
+        dataSize = 0;
+        dataFailed = false;
+        connection.write(SmtpReplies.START_MAIL_INPUT);
+    }
+
+    private void handleDataLine(Reactor.Connection connection, byte[] line, int length) {
+        if (length != 1 || line[0] != '.') {
+            // Lines are written as they arrive, and once the size limit is passed the rest is only counted.
+            dataSize += length + 2;
+            if (dataFailed || dataSize > MySMTPServer.MAX_MESSAGE_SIZE) return;
+
+            // Lines starting with a period were dot-stuffed by the client. The rest is widened into a reused buffer,
+            // with the CRLF the event loop removed.
+            int start = length > 0 && line[0] == '.' ? 1 : 0;
+            int count = length - start + 2;
+            if (chars.length < count) chars = new char[Math.max(count, chars.length * 2)];
+            for (int i = start; i < length; i++) chars[i - start] = (char) (line[i] & 0xff);
+            chars[count - 2] = '\r';
+            chars[count - 1] = '\n';
+            try {
+                data.write(chars, 0, count);
+            } catch (IOException e) {
+                // Reported once the end of the message is reached.
+                dataFailed = true;
+            }
+            return;
+        }
+
+        // Closing the writer delivers the message, so a message that failed or is over the limit is abandoned instead.
+        Writer mailWriter = data;
+        data = null;
+        if (dataFailed || dataSize > MySMTPServer.MAX_MESSAGE_SIZE) {
+            MessageStore.abort(mailWriter);
+            connection.write(dataFailed ? SmtpReplies.ABORTED : SmtpReplies.SIZE_EXCEEDED);
+        } else {
+            // Closing waits for the message to be synced to disk, so it is done on a worker thread, and the reply is
+            // sent once it is.
+            connection.offload(() -> {
+                try {
+                    mailWriter.flush();
+                    mailWriter.close();
+                } catch (IOException | RuntimeException e) {
+                    MessageStore.abort(mailWriter);
+                    throw e;
+                }
+                return null;
+            }, (ignored, error) -> connection.write(error == null ? SmtpReplies.OK : SmtpReplies.ABORTED));
+        }
+
+        endTransaction();
+    }
+
+    /**
+     * Clears the state of the current mail transaction, if any.
+     */
+    private void endTransaction() {
+        data = null;
+        sender = null;
+        reciver = new ArrayList<>();
+        declaredSize = -1;
+        if (transactionTimeout != null) transactionTimeout.cancel();
+        transactionTimeout = null;
+        state = MySMTPServer.State.HELO;
+    }
+
+    private void handleVrfyCommand(Reactor.Connection connection) {
+        if (!command.argumentContains('@')) {
+            connection.write(SmtpReplies.SYNTAX_ERROR);
+            return;
+        }
+
+        if (UserDirectory.getInstance().isValidUser(command.argument())) connection.write(SmtpReplies.OK);
+        else connection.write(SmtpReplies.NO_SUCH_USER);
+    }
+}
@@ -0,0 +1,62 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SMTP replies encoded once, when the class is loaded, including their CRLF terminator. Sessions write them to the
+ * client as they are, instead of building and encoding a string for every reply. Replies naming the host use the
+ * name looked up by {@link MySMTPServer#getHostName()}, and must not be modified.
+ */
+public final class SmtpReplies {
+
+    private static final String HOST_NAME = MySMTPServer.getHostName();
+
+    public static final byte[] READY = encode("220 " + HOST_NAME + " SMTP Ready");
+    public static final byte[] LMTP_READY = encode("220 " + HOST_NAME + " LMTP Ready");
+    public static final byte[] CLOSING = encode("221 " + HOST_NAME + " Service closing transmission channel");
+    public static final byte[] OK = encode("250 OK");
+    public static final byte[] HELO = encode("250 " + HOST_NAME);
+    public static final byte[] EHLO = encode("250-" + HOST_NAME, "250-PIPELINING", "250-8BITMIME", "250-CHUNKING",
+            "250-BINARYMIME", "250 SIZE " + MySMTPServer.MAX_MESSAGE_SIZE);
+    /** EHLO reply for sessions that only support pipelining and declared sizes. */
+    public static final byte[] EHLO_BASIC = encode("250-" + HOST_NAME, "250-PIPELINING",
+            "250 SIZE " + MySMTPServer.MAX_MESSAGE_SIZE);
+    /** EHLO replies for plaintext sessions that can switch to TLS. */
+    public static final byte[] EHLO_STARTTLS = encode("250-" + HOST_NAME, "250-PIPELINING", "250-8BITMIME",
+            "250-CHUNKING", "250-BINARYMIME", "250-STARTTLS", "250 SIZE " + MySMTPServer.MAX_MESSAGE_SIZE);
+    public static final byte[] EHLO_BASIC_STARTTLS = encode("250-" + HOST_NAME, "250-PIPELINING", "250-STARTTLS",
+            "250 SIZE " + MySMTPServer.MAX_MESSAGE_SIZE);
+    public static final byte[] READY_TO_START_TLS = encode("220 Ready to start TLS");
+    public static final byte[] START_MAIL_INPUT = encode("354 Start mail input");
+    public static final byte[] TOO_MANY_CONNECTIONS =
+            encode("421 " + HOST_NAME + " Too many connections, try again later");
+    public static final byte[] TOO_MANY_SESSIONS =
+            encode("421 " + HOST_NAME + " Too many sessions, try again later");
+    public static final byte[] TOO_MANY_COMMANDS =
+            encode("421 " + HOST_NAME + " Too many commands, closing connection");
+    public static final byte[] TOO_MANY_MESSAGES =
+            encode("421 " + HOST_NAME + " Too many messages, closing connection");
+    public static final byte[] ABORTED = encode("451 Requested action aborted: error in processing");
+    public static final byte[] LINE_TOO_LONG = encode("500 Line too long");
+    public static final byte[] SYNTAX_ERROR = encode("501 Syntax error in parameters or arguments");
+    public static final byte[] NOT_IMPLEMENTED = encode("502 Command not implemented");
+    public static final byte[] BAD_SEQUENCE = encode("503 Bad sequence of commands");
+    public static final byte[] NO_SUCH_USER = encode("550 No such user here");
+    public static final byte[] MAILBOX_FULL = encode("552 Requested mail action aborted: exceeded storage allocation");
+    public static final byte[] SIZE_EXCEEDED = encode("552 Message size exceeds fixed maximum message size");
+
+    private SmtpReplies() {
+    }
+
+    /**
+     * Encodes the lines of a reply, each followed by CRLF.
+     *
+     * @param lines The lines of the reply, without their terminators.
+     * @return The encoded reply.
+     */
+    private static byte[] encode(String... lines) {
+        StringBuilder reply = new StringBuilder();
+        for (String line : lines) reply.append(line).append("\r\n");
+        return reply.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,397 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk queue of messages waiting to be delivered. A session saves a message into the spool directory and can
+ * report it as accepted right away; a pool of worker threads then hands every spooled message to a {@link Delivery},
+ * retrying failed deliveries with an exponential backoff. Messages found in the spool directory when the spool is
+ * created are queued again, so every accepted message is delivered at least once, even if the process stops in the
+ * middle of a delivery.
+ * <p>
+ * Each message is kept as two files named after its identifier: {@code <id>.msg} with the content, and
+ * {@code <id>.rcpt} with the recipients still to deliver to, one per line, after the envelope sender in angle
+ * brackets when it is known, itself followed by the {@code BODY} parameter of the message unless it is plain 7-bit
+ * text. The recipient file is moved into place last, so a message is only part of the spool once
+ * both files are complete. When a delivery only succeeds for some recipients, the recipient file is replaced by one
+ * listing the others. Messages that still fail after the maximum
+ * number of attempts are moved to the {@code failed} subdirectory.
+ */
+public class Spool {
+
+    private static final String TEMP_PREFIX = "tmp-";
+    private static final String CONTENT = ".msg";
+    private static final String RECIPIENTS = ".rcpt";
+    private static final long MAX_RETRY_DELAY = TimeUnit.HOURS.toNanos(1);
+
+    private final String name;
+    private final Path dir;
+    private final Path failed;
+    private final Delivery delivery;
+    private final int maxAttempts;
+    private final long retryDelay;
+    private final GroupCommit groupCommit;
+    private final DelayQueue<Entry> queue = new DelayQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Worker[] workers;
+
+    /**
+     * Delivers the spooled messages.
+     */
+    public interface Delivery {
+
+        /**
+         * Delivers a message to its recipients. Called from the spool's worker threads, possibly concurrently.
+         *
+         * @param sender     The envelope sender of the message, or null if it is not known.
+         * @param body       The body type of the message, {@code 8BITMIME} or {@code BINARYMIME}, or null for plain
+         *                   7-bit text or if it is not known.
+         * @param recipients The recipients the message has not been delivered to yet.
+         * @param content    The file containing the content of the message.
+         * @return The recipients the delivery failed for and must be attempted again; empty if the message was
+         * delivered to all of them.
+         * @throws IOException If the delivery failed for all the recipients, and must be attempted again.
+         */
+        List<String> deliver(String sender, String body, List<String> recipients, Path content) throws IOException;
+    }
+
+    /**
+     * Creates a spool in the given directory, queues the messages it already contains, and starts the workers.
+     *
+     * @param name        Name of the spool, used to name its threads.
+     * @param dir         The spool directory.
+     * @param delivery    Delivers the spooled messages.
+     * @param workers     Number of worker threads delivering messages concurrently.
+     * @param maxAttempts Number of delivery attempts before a message is moved to the failed directory.
+     * @param retryDelay  Delay before the second attempt, doubled for every following attempt, up to an hour.
+     * @param unit        Unit of the retry delay.
+     * @param groupCommit Used to make spooled messages durable before they are accepted, or null if the spool does
+     *                    not force them to disk.
+     */
+    public Spool(String name, Path dir, Delivery delivery, int workers, int maxAttempts, long retryDelay,
+                 TimeUnit unit, GroupCommit groupCommit) {
+        this.name = name;
+        this.dir = dir;
+        this.failed = dir.resolve("failed");
+        this.delivery = delivery;
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.retryDelay = unit.toNanos(retryDelay);
+        this.groupCommit = groupCommit;
+        try {
+            Files.createDirectories(failed);
+            replay();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open the spool in " + dir + ".", e);
+        }
+
+        this.workers = new Worker[Math.max(workers, 1)];
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = new Worker();
+            Thread thread = new Thread(this.workers[i], name + "-worker-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Starts spooling a message. The message is part of the spool, and queued for delivery, once the returned writer
+     * has been closed.
+     *
+     * @param sender     The envelope sender of the message (empty for the null reverse path), or null if it is not
+     *                   known.
+     * @param body       The body type declared by the client, {@code 8BITMIME} or {@code BINARYMIME}, or null for
+     *                   plain 7-bit text. Only kept when the sender is known.
+     * @param recipients The users (email addresses) the message is delivered to.
+     * @return A writer receiving the content of the message. Characters are narrowed back to bytes.
+     * @throws IOException If the message cannot be spooled.
+     */
+    public Writer open(String sender, String body, List<String> recipients) throws IOException {
+        String id = System.currentTimeMillis() + "-" + sequence.incrementAndGet();
+        return new SpoolWriter(id, sender, body, recipients);
+    }
+
+    /**
+     * @return Number of messages waiting in the spool, including those waiting for another attempt.
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Prints the depth of the queue and the throughput of every worker at a fixed interval.
+     *
+     * @param interval Time between two reports.
+     * @param unit     Unit of the interval.
+     */
+    public void reportEvery(long interval, TimeUnit unit) {
+        long[] previous = new long[workers.length];
+        long since = System.nanoTime();
+        TimingWheel.shared().schedule(() -> report(previous, since, interval, unit), interval, unit);
+    }
+
+    private void report(long[] previous, long since, long interval, TimeUnit unit) {
+        long now = System.nanoTime();
+        double seconds = (now - since) / (double) TimeUnit.SECONDS.toNanos(1);
+        StringBuilder line = new StringBuilder(name + " spool: " + size() + " queued");
+        for (int i = 0; i < workers.length; i++) {
+            long delivered = workers[i].delivered.get();
+            line.append(String.format("; worker %d: %d delivered (%.1f/s), %d failed attempts", i + 1, delivered,
+                    (delivered - previous[i]) / seconds, workers[i].failedAttempts.get()));
+            previous[i] = delivered;
+        }
+        System.out.println(line);
+        TimingWheel.shared().schedule(() -> report(previous, now, interval, unit), interval, unit);
+    }
+
+    @Override
+    public String toString() {
+        return name + " spool in " + dir + " with " + workers.length + " workers, " + size() + " queued";
+    }
+
+    /**
+     * Removes files left by interrupted spooling, and queues the complete messages.
+     */
+    private void replay() throws IOException {
+        TreeSet<String> ids = new TreeSet<>();
+        List<Path> orphans = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String file = entry.getFileName().toString();
+                if (file.startsWith(TEMP_PREFIX)) Files.deleteIfExists(entry);
+                else if (file.endsWith(RECIPIENTS)) ids.add(file.substring(0, file.length() - RECIPIENTS.length()));
+                else if (file.endsWith(CONTENT)) orphans.add(entry);
+            }
+        }
+        for (Path orphan : orphans) {
+            String file = orphan.getFileName().toString();
+            if (!ids.contains(file.substring(0, file.length() - CONTENT.length()))) Files.deleteIfExists(orphan);
+        }
+        for (String id : ids) queue.add(new Entry(id));
+        if (!ids.isEmpty()) System.out.println("Queued " + ids.size() + " messages left in the " + name + " spool.");
+    }
+
+    private Path content(String id) {
+        return dir.resolve(id + CONTENT);
+    }
+
+    private Path recipients(String id) {
+        return dir.resolve(id + RECIPIENTS);
+    }
+
+    /**
+     * Writes a recipient file under a temporary name, and moves it into place.
+     */
+    private void writeRecipients(String id, String sender, String body, List<String> recipients) throws IOException {
+        Path temp = dir.resolve(TEMP_PREFIX + id + RECIPIENTS);
+        List<String> lines = new ArrayList<>(recipients.size() + 1);
+        if (sender != null) lines.add("<" + sender + ">" + (body != null ? " BODY=" + body : ""));
+        lines.addAll(recipients);
+        Files.write(temp, lines, StandardCharsets.ISO_8859_1);
+        Files.move(temp, recipients(id), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Makes one attempt at delivering a message, and queues it again if the delivery did not complete.
+     *
+     * @return true if the message was delivered to all its recipients.
+     */
+    private boolean attempt(Entry entry) {
+        String sender = null;
+        String body = null;
+        List<String> recipients;
+        List<String> remaining;
+        try {
+            recipients = Files.readAllLines(recipients(entry.id), StandardCharsets.ISO_8859_1);
+            if (!recipients.isEmpty() && recipients.get(0).startsWith("<")) {
+                String first = recipients.remove(0);
+                int end = first.lastIndexOf('>');
+                sender = first.substring(1, end);
+                String parameters = first.substring(end + 1).trim();
+                if (parameters.startsWith("BODY=")) body = parameters.substring("BODY=".length());
+            }
+        } catch (NoSuchFileException e) {
+            // The message was removed from the spool directory.
+            return false;
+        } catch (IOException e) {
+            System.err.println("Could not read the recipients of spooled message " + entry.id + ".");
+            e.printStackTrace();
+            recipients = null;
+        }
+
+        try {
+            remaining = recipients == null ? null : delivery.deliver(sender, body, recipients, content(entry.id));
+            if (remaining != null && remaining.isEmpty()) {
+                Files.deleteIfExists(recipients(entry.id));
+                Files.deleteIfExists(content(entry.id));
+                return true;
+            }
+            if (remaining != null) {
+                System.err.println("Delivery attempt " + (entry.attempts + 1) + " of spooled message " + entry.id
+                        + " failed for " + remaining.size() + " of " + recipients.size() + " recipients.");
+                if (remaining.size() < recipients.size()) writeRecipients(entry.id, sender, body, remaining);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Delivery attempt " + (entry.attempts + 1) + " of spooled message " + entry.id
+                    + " failed: " + e);
+        }
+
+        entry.attempts++;
+        if (entry.attempts >= maxAttempts) {
+            System.err.println("Giving up on spooled message " + entry.id + " after " + entry.attempts + " attempts.");
+            try {
+                Files.move(content(entry.id), failed.resolve(entry.id + CONTENT), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(recipients(entry.id), failed.resolve(entry.id + RECIPIENTS),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.err.println("Could not move spooled message " + entry.id + " to " + failed + ".");
+                e.printStackTrace();
+            }
+            return false;
+        }
+
+        long delay = retryDelay << Math.min(entry.attempts - 1, 30);
+        entry.due = System.nanoTime() + (delay > 0 ? Math.min(delay, MAX_RETRY_DELAY) : MAX_RETRY_DELAY);
+        queue.add(entry);
+        return false;
+    }
+
+    /**
+     * A message waiting in the spool, ordered by the time of its next delivery attempt.
+     */
+    private static class Entry implements Delayed {
+
+        private final String id;
+        private int attempts = 0;
+        private long due = System.nanoTime();
+
+        private Entry(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(due, ((Entry) other).due);
+        }
+    }
+
+    /**
+     * Delivers queued messages as they become due, and counts its deliveries.
+     */
+    private class Worker implements Runnable {
+
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong failedAttempts = new AtomicLong();
+
+        @Override
+        public void run() {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                try {
+                    if (attempt(queue.take())) delivered.incrementAndGet();
+                    else failedAttempts.incrementAndGet();
+                } catch (InterruptedException e) {
+                    // Workers run for the life of the process.
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the content of a message to a temporary file, and adds the message to the spool on close. An aborted
+     * message only leaves the temporary file, which is removed.
+     */
+    private class SpoolWriter extends Writer implements MessageStore.Abortable {
+
+        private final String id;
+        private final String sender;
+        private final String body;
+        private final List<String> recipients;
+        private final Path temp;
+        private final Writer out;
+        private boolean closed = false;
+
+        private SpoolWriter(String id, String sender, String body, List<String> recipients) throws IOException {
+            this.id = id;
+            this.sender = sender;
+            this.body = body;
+            this.recipients = List.copyOf(recipients);
+            this.temp = dir.resolve(TEMP_PREFIX + id + CONTENT);
+            // Characters are narrowed back to the bytes received from the client.
+            this.out = new OutputStreamWriter(new BufferedOutputStream(Files.newOutputStream(temp)),
+                    StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                out.close();
+                Files.move(temp, content(id), StandardCopyOption.ATOMIC_MOVE);
+                writeRecipients(id, sender, body, recipients);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                Files.deleteIfExists(content(id));
+                throw e;
+            }
+            if (groupCommit != null) {
+                try {
+                    groupCommit.await(List.of(content(id), recipients(id), dir));
+                } catch (IOException e) {
+                    // The client is told the message was not accepted, so it must not be delivered.
+                    Files.deleteIfExists(recipients(id));
+                    Files.deleteIfExists(content(id));
+                    throw e;
+                }
+            }
+            queue.add(new Entry(id));
+        }
+
+        @Override
+        public void abort() {
+            if (closed) return;
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                // The file is removed anyway.
+            }
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                System.err.println("Could not remove " + temp + ": " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message store accepting messages into a {@link Spool}, and delivering them to another store in the background. A
+ * message is accepted as soon as it is saved in the spool, so sessions do not wait for the mailboxes of its
+ * recipients to be written, and a failed delivery is retried by the spool instead of being reported to the client.
+ */
+public class SpoolingStore implements MessageStore {
+
+    private final MessageStore store;
+    private final Spool spool;
+
+    /**
+     * Creates a store spooling messages in the given directory, and delivers the messages already spooled there.
+     *
+     * @param dir          The spool directory.
+     * @param store        The store the spooled messages are delivered to.
+     * @param workers      Number of threads delivering spooled messages.
+     * @param maxAttempts  Number of delivery attempts before a message is set aside.
+     * @param retrySeconds Delay before a failed delivery is attempted again, doubled after every attempt.
+     * @param groupCommit  Used to make spooled messages durable before they are accepted, or null.
+     */
+    public SpoolingStore(Path dir, MessageStore store, int workers, int maxAttempts, long retrySeconds,
+                         GroupCommit groupCommit) {
+        this.store = store;
+        this.spool = new Spool("delivery", dir, (sender, body, recipients, content) -> store.deliver(recipients, content),
+                workers, maxAttempts, retrySeconds, TimeUnit.SECONDS, groupCommit);
+    }
+
+    /**
+     * @return The spool holding the messages waiting for delivery.
+     */
+    public Spool getSpool() {
+        return spool;
+    }
+
+    @Override
+    public Writer open(List<String> recipients) throws IOException {
+        return spool.open(null, null, recipients);
+    }
+
+    @Override
+    public long mailboxSize(String user) {
+        return store.mailboxSize(user);
+    }
+
+    @Override
+    public MailboxIndex.Summary summary(String user) {
+        return store.summary(user);
+    }
+
+    @Override
+    public void deleteMessagesTaggedForDeletion(Mailbox mailbox) {
+        store.deleteMessagesTaggedForDeletion(mailbox);
+    }
+
+    @Override
+    public void expunge(List<Path> files) {
+        store.expunge(files);
+    }
+}
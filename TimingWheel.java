@@ -0,0 +1,195 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel (Varghese and Lauck) running the timeouts of all sessions on a single thread. Scheduling,
+ * resetting and cancelling a timeout are O(1) and do not block: the request is queued, and the wheel thread moves the
+ * timeout into the slot of its deadline at the next tick. Timeouts fire at most one tick late.
+ * <p>
+ * Sessions typically keep one timeout and push its deadline forward on activity with {@link Timeout#reset}, which only
+ * involves the wheel thread when the new deadline is earlier than the one the timeout was placed for.
+ */
+public class TimingWheel {
+
+    private static final TimingWheel SHARED = new TimingWheel("session-timeouts", 100, TimeUnit.MILLISECONDS, 1024);
+
+    private final long tickNanos;
+    private final Slot[] slots;
+    private final long start = System.nanoTime();
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private long tick = 0;
+
+    /**
+     * Creates a timing wheel and starts its thread.
+     *
+     * @param name          Name of the wheel thread.
+     * @param tickDuration  Duration of a tick, which is the precision of the timeouts.
+     * @param unit          Unit of the tick duration.
+     * @param slotsPerWheel Number of slots in the wheel, rounded up to a power of two.
+     */
+    public TimingWheel(String name, long tickDuration, TimeUnit unit, int slotsPerWheel) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.slots = new Slot[Integer.highestOneBit(Math.max(slotsPerWheel - 1, 1)) << 1];
+        for (int i = 0; i < slots.length; i++) slots[i] = new Slot();
+
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @return The wheel shared by the sessions of all servers in this process, with a tick of 100 milliseconds.
+     */
+    public static TimingWheel shared() {
+        return SHARED;
+    }
+
+    /**
+     * Schedules a task to run once the given delay has passed. The task runs on the wheel thread, so it must be
+     * short and must not block.
+     *
+     * @param task  The task to run.
+     * @param delay Time until the task runs.
+     * @param unit  Unit of the delay.
+     * @return The timeout, which can be reset or cancelled.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            long sleep = start + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    // The wheel runs for the life of the process.
+                }
+                continue;
+            }
+
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null) {
+                timeout.unlink();
+                if (!timeout.cancelled) place(timeout);
+            }
+
+            expire(slots[(int) (tick & (slots.length - 1))], System.nanoTime());
+            tick++;
+        }
+    }
+
+    private void place(Timeout timeout) {
+        long deadline = timeout.deadline;
+        long target = Math.max((deadline - start + tickNanos - 1) / tickNanos, tick);
+        timeout.rounds = (target - tick) / slots.length;
+        timeout.placedDeadline = deadline;
+        slots[(int) (target & (slots.length - 1))].add(timeout);
+    }
+
+    private void expire(Slot slot, long now) {
+        Timeout timeout = slot.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                timeout.unlink();
+                if (timeout.cancelled) {
+                    // Nothing to do.
+                } else if (timeout.deadline - now > 0) {
+                    // The deadline was pushed forward since the timeout was placed.
+                    place(timeout);
+                } else {
+                    timeout.cancelled = true;
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Error running a timeout.");
+                        e.printStackTrace();
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * A doubly-linked list of timeouts, only used by the wheel thread.
+     */
+    private static class Slot {
+
+        private Timeout head;
+
+        private void add(Timeout timeout) {
+            timeout.slot = this;
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null) head.prev = timeout;
+            head = timeout;
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public class Timeout {
+
+        private final Runnable task;
+        private volatile long deadline;
+        private volatile long placedDeadline = Long.MAX_VALUE;
+        private volatile boolean cancelled = false;
+
+        // Only used by the wheel thread.
+        private long rounds;
+        private Slot slot;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Moves the deadline to the given delay from now, unless the task has run already.
+         *
+         * @param delay Time until the task runs.
+         * @param unit  Unit of the delay.
+         */
+        public void reset(long delay, TimeUnit unit) {
+            if (cancelled) return;
+            long updated = System.nanoTime() + unit.toNanos(delay);
+            deadline = updated;
+            // A later deadline is noticed when the current slot comes up; an earlier one needs a new slot.
+            if (updated - placedDeadline < 0) pending.add(this);
+        }
+
+        /**
+         * Cancels the timeout, so its task never runs if it has not run already. Cancelling a timeout that has run
+         * or was cancelled already has no effect.
+         */
+        public void cancel() {
+            if (cancelled) return;
+            cancelled = true;
+            pending.add(this);
+        }
+
+        private void unlink() {
+            if (slot == null) return;
+            if (prev != null) prev.next = next;
+            else slot.head = next;
+            if (next != null) next.prev = prev;
+            slot = null;
+            prev = null;
+            next = null;
+        }
+    }
+}
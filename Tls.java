@@ -0,0 +1,100 @@
+package ca.yorku.eecs3214.mail.net;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * TLS configuration shared by the servers, used to upgrade connections with STARTTLS (RFC 3207) and STLS (RFC 2595).
+ * Every connection is secured by the same {@link SSLContext}, so all of them share its server session cache: a client
+ * reconnecting within the session timeout, such as a POP client polling every minute, resumes its previous session
+ * with an abbreviated handshake instead of a full one, skipping the key exchange and certificate signature that make
+ * most of the cost of TLS. With TLS 1.3, sessions are resumed from the tickets the server gives its clients.
+ * <p>
+ * TLS is enabled by the {@code tls.keystore} system property, naming a keystore holding the server's key and
+ * certificate, with {@code tls.keystorePassword} and {@code tls.keystoreType} (default PKCS12). For testing, a
+ * self-signed one can be made with
+ * {@code keytool -genkeypair -alias mail -keyalg EC -dname CN=localhost -keystore mail.p12 -storepass changeit}.
+ * The session cache holds {@code tls.sessionCacheSize} sessions (default 20000) for
+ * {@code tls.sessionTimeoutSeconds} (default 86400).
+ */
+public class Tls {
+
+    private static final Tls INSTANCE = create();
+
+    private final SSLContext context;
+
+    /**
+     * Creates a configuration.
+     *
+     * @param context               The context holding the server's key and certificate.
+     * @param sessionCacheSize      Maximum number of sessions kept for resumption.
+     * @param sessionTimeoutSeconds Time a session can be resumed after it was established.
+     */
+    public Tls(SSLContext context, int sessionCacheSize, int sessionTimeoutSeconds) {
+        this.context = context;
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeoutSeconds);
+    }
+
+    /**
+     * @return The configuration shared by all the sessions of this process, or null if TLS is not enabled.
+     */
+    public static Tls getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates an engine for the server side of a connection, for sessions driven by the {@link Reactor}.
+     *
+     * @return A new engine in server mode.
+     */
+    public SSLEngine createEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    /**
+     * Secures a connection of a blocking session, and performs the handshake. Anything the session had read from the
+     * connection but not yet processed must be discarded, since it was received in plaintext.
+     *
+     * @param socket The connected socket, closed with the returned one.
+     * @return A socket in server mode, layered over the given one.
+     * @throws IOException If the handshake fails.
+     */
+    public SSLSocket secure(Socket socket) throws IOException {
+        SSLSocket secured = (SSLSocket) context.getSocketFactory().createSocket(socket, null, true);
+        secured.startHandshake();
+        return secured;
+    }
+
+    private static Tls create() {
+        String keystore = System.getProperty("tls.keystore");
+        if (keystore == null) return null;
+
+        char[] password = System.getProperty("tls.keystorePassword", "").toCharArray();
+        try (InputStream in = Files.newInputStream(Paths.get(keystore))) {
+            KeyStore keys = KeyStore.getInstance(System.getProperty("tls.keystoreType", "PKCS12"));
+            keys.load(in, password);
+            KeyManagerFactory managers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            managers.init(keys, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(managers.getKeyManagers(), null, null);
+            return new Tls(context, Integer.getInteger("tls.sessionCacheSize", 20000),
+                    Integer.getInteger("tls.sessionTimeoutSeconds", 86400));
+        } catch (IOException | GeneralSecurityException e) {
+            throw new RuntimeException("Could not load the TLS keystore " + keystore + ".", e);
+        }
+    }
+}
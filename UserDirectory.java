@@ -0,0 +1,204 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * In-memory directory of the users with a mailbox, shared by all sessions. Used to validate addresses in RCPT, VRFY
+ * and PASS without going to disk for every lookup, and to give every session the same {@link Mailbox} handle for a
+ * given recipient.
+ * <p>
+ * When the {@code mail.users} system property names the users file (one user per line, with the user name as the
+ * first word; blank lines and lines starting with {@code #} are ignored), the file is loaded once and a Bloom filter
+ * in front of the user table rejects most unknown addresses with a few memory reads. The file is checked for changes
+ * at most every {@code mail.users.refreshSeconds} seconds (default 30): if it is the same file and only grew, with
+ * the lines already read left as they were, just the appended lines are added, otherwise it is loaded again. Without the property, lookups fall back to {@link Mailbox#isValidUser(String)}.
+ */
+public class UserDirectory {
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final int MIN_CAPACITY = 1024;
+
+    private static final UserDirectory INSTANCE = new UserDirectory(
+            System.getProperty("mail.users") == null ? null : Paths.get(System.getProperty("mail.users")),
+            TimeUnit.SECONDS.toNanos(Long.getLong("mail.users.refreshSeconds", 30)));
+
+    private final Path usersFile;
+    private final long refreshInterval;
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    // The filter is written after every change to the users, so that reading it first makes the change visible.
+    private volatile Set<String> users = ConcurrentHashMap.newKeySet();
+    private volatile BloomFilter filter = new BloomFilter(MIN_CAPACITY, FALSE_POSITIVE_RATE);
+    private volatile long nextCheck;
+    private long offset = 0;
+    private long lastModified = 0;
+    // The identity of the file and the checksum of the lines read so far, which tell appends from rewrites.
+    private Object fileKey;
+    private long checksum;
+
+    /**
+     * Creates a directory.
+     *
+     * @param usersFile       The users file, or null to check every address with {@link Mailbox#isValidUser(String)}.
+     * @param refreshInterval Minimum time between checks of the users file for changes, in nanoseconds.
+     */
+    public UserDirectory(Path usersFile, long refreshInterval) {
+        this.usersFile = usersFile;
+        this.refreshInterval = refreshInterval;
+        if (usersFile != null) {
+            synchronized (this) {
+                refresh();
+            }
+        }
+    }
+
+    /**
+     * @return The directory shared by all the sessions of this process.
+     */
+    public static UserDirectory getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks if a user has a mailbox in this server.
+     *
+     * @param user The user name (email address).
+     * @return true if the user exists.
+     */
+    public boolean isValidUser(String user) {
+        if (user == null) return false;
+        if (usersFile == null) return mailboxes.containsKey(user) || Mailbox.isValidUser(user);
+
+        refreshIfDue();
+        return filter.mightContain(user) && users.contains(user);
+    }
+
+    /**
+     * Retrieves the mailbox of a user, for delivery. All callers get the same handle for the same user.
+     *
+     * @param user The user name (email address).
+     * @return The user's mailbox, or null if the user does not exist.
+     */
+    public Mailbox lookup(String user) {
+        if (!isValidUser(user)) return null;
+        return mailboxes.computeIfAbsent(user, Mailbox::new);
+    }
+
+    private void refreshIfDue() {
+        if (System.nanoTime() - nextCheck < 0) return;
+
+        synchronized (this) {
+            if (System.nanoTime() - nextCheck < 0) return;
+            refresh();
+        }
+    }
+
+    /**
+     * Brings the table up to date with the users file. Must be called while holding the lock of this directory.
+     */
+    private void refresh() {
+        nextCheck = System.nanoTime() + refreshInterval;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(usersFile, BasicFileAttributes.class);
+            long modified = attributes.lastModifiedTime().toMillis();
+            if (attributes.size() == offset && modified == lastModified
+                    && Objects.equals(attributes.fileKey(), fileKey)) {
+                return;
+            }
+
+            byte[] content = read();
+            // A file replaced by another one, or edited in place, can be larger and still differ in the lines read.
+            boolean appended = content.length > offset && Objects.equals(attributes.fileKey(), fileKey)
+                    && checksum(content, offset) == checksum;
+            fileKey = attributes.fileKey();
+            if (appended) {
+                // Only the appended users need to be added to the current table.
+                List<String> added = parse(content, offset);
+                Set<String> current = users;
+                current.addAll(added);
+
+                BloomFilter updated = filter;
+                if (current.size() > updated.capacity()) updated = newFilter(current);
+                else for (String user : added) updated.add(user);
+                filter = updated;
+            } else {
+                // The file was rewritten, so a new table is built and replaces the current one once complete.
+                Set<String> reloaded = ConcurrentHashMap.newKeySet();
+                reloaded.addAll(parse(content, 0));
+                BloomFilter updated = newFilter(reloaded);
+                users = reloaded;
+                filter = updated;
+                mailboxes.keySet().retainAll(reloaded);
+            }
+            lastModified = modified;
+        } catch (IOException e) {
+            System.err.println("Error loading the users file " + usersFile + ".");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the content of the users file.
+     */
+    private byte[] read() throws IOException {
+        ByteBuffer content;
+        try (FileChannel channel = FileChannel.open(usersFile, StandardOpenOption.READ)) {
+            content = ByteBuffer.allocate((int) channel.size());
+            while (content.hasRemaining()) {
+                if (channel.read(content) < 0) break;
+            }
+        }
+        return Arrays.copyOf(content.array(), content.position());
+    }
+
+    /**
+     * Finds the users in the complete lines of the users file starting at the given position, and moves the offset
+     * past them. A last line without its terminator is left to be read by a later refresh.
+     */
+    private List<String> parse(byte[] content, long position) {
+        int start = (int) position;
+        int end = content.length;
+        while (end > start && content[end - 1] != '\n') end--;
+
+        List<String> found = new ArrayList<>();
+        String text = new String(content, start, end - start, StandardCharsets.UTF_8);
+        for (String line : text.split("\n")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+            found.add(trimmed.split("\\s+", 2)[0]);
+        }
+        offset = end;
+        checksum = checksum(content, end);
+        return found;
+    }
+
+    private static long checksum(byte[] content, long length) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, (int) length);
+        return crc.getValue();
+    }
+
+    private static BloomFilter newFilter(Set<String> users) {
+        BloomFilter filter = new BloomFilter(Math.max(users.size() * 2, MIN_CAPACITY), FALSE_POSITIVE_RATE);
+        for (String user : users) filter.add(user);
+        return filter;
+    }
+}
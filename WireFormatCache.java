@@ -0,0 +1,672 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.BufferedInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Cache of messages in POP3 wire format, shared by all POP sessions. A cached message has CRLF line endings, lines
+ * starting with a period are dot-stuffed, and it ends with the terminating line (RFC 1939, section 3), so RETR sends
+ * its cached copy as it is, with {@link java.nio.channels.FileChannel#transferTo}, and reports its exact size. Right
+ * after every cached message, an index records where each line of its body ends, so TOP sends the beginning of the
+ * same copy without reading through it.
+ * <p>
+ * Messages are appended to segment files of {@code pop.wireCache.segmentMegabytes} (default 64) rather than kept in a
+ * file each, so the cache directory stays small, and the segments are kept open, so sending a cached message is a
+ * transfer of a byte range without opening any file. A message is measured first, then converted straight into a
+ * region reserved for it at the end of the current segment, so sessions converting different messages write to the
+ * same segment concurrently. The measures taken for LIST and STAT are kept for the last messages measured, so they are
+ * not measured again when retrieved.
+ * <p>
+ * A message is converted the first time it is retrieved, and found again as long as its file keeps the same identity,
+ * size and modification time, so the copies of a message linked into several mailboxes share one cached copy. The
+ * cache lives in the {@code pop.wireCache.dir} directory (default {@code pop-wire-cache-<pid>} in the temporary
+ * directory), emptied at startup and removed when the process exits. The least recently used messages are dropped
+ * once the cache exceeds {@code pop.wireCache.maxMegabytes} (default 256), leaving their space in the segments unused.
+ * Once {@code pop.wireCache.compactPercent} (default 50) of a segment is unused, a compactor thread moves its remaining
+ * messages to the current segment, and the segment file is removed when no session is sending from it anymore.
+ */
+public class WireFormatCache {
+
+    private static final byte[] TERMINATOR = {'.', '\r', '\n'};
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int UID_BYTES = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_MEASURED = 4096;
+
+    private static final WireFormatCache INSTANCE = new WireFormatCache(
+            Paths.get(System.getProperty("pop.wireCache.dir",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "pop-wire-cache-" + ProcessHandle.current().pid())
+                            .toString())),
+            Long.getLong("pop.wireCache.maxMegabytes", 256) * 1024 * 1024,
+            Long.getLong("pop.wireCache.segmentMegabytes", 64) * 1024 * 1024,
+            Integer.getInteger("pop.wireCache.compactPercent", 50));
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final int compactPercent;
+    private final LinkedBlockingQueue<Segment> compactions = new LinkedBlockingQueue<>();
+    // In access order, so the first entries are the least recently used.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Layouts of messages measured for LIST and STAT but not converted yet, so RETR does not measure them again.
+    private final LinkedHashMap<String, Layout> measured = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Layout> eldest) {
+            return size() > MAX_MEASURED;
+        }
+    };
+    private long bytes = 0;
+    private int segments = 0;
+    private Segment current;
+
+    /**
+     * Creates a cache in the given directory, removing the files it contains, and starts its compactor. The directory
+     * is removed when the process exits.
+     *
+     * @param dir            The cache directory.
+     * @param maxBytes       Size of the cached messages above which the least recently used are dropped.
+     * @param segmentBytes   Size of the segment files, above which messages are appended to a new one.
+     * @param compactPercent Percentage of a segment left unused by dropped messages from which it is compacted.
+     */
+    public WireFormatCache(Path dir, long maxBytes, long segmentBytes, int compactPercent) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        this.compactPercent = Math.min(Math.max(compactPercent, 1), 100);
+        try {
+            Files.createDirectories(dir);
+            clear();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open the wire format cache in " + dir + ".", e);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                clear();
+                Files.deleteIfExists(dir);
+            } catch (IOException ignored) {
+            }
+        }, "pop-wire-cache-cleanup"));
+
+        Thread compactor = new Thread(this::compactLoop, "pop-wire-cache-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * @return The cache shared by all the sessions of this process.
+     */
+    public static WireFormatCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Finds a message in wire format, converting it if it is not cached yet. The returned message keeps its segment
+     * open until it is released.
+     *
+     * @param message The file of the message, as stored in the mailbox.
+     * @return The message in wire format, with its index, to release once it has been sent.
+     * @throws IOException If the message cannot be read or converted.
+     */
+    public WireMessage get(Path message) throws IOException {
+        String key = key(message);
+        Layout layout;
+        synchronized (this) {
+            Entry cached = entries.get(key);
+            if (cached != null) return new WireMessage(cached);
+            layout = measured.remove(key);
+        }
+
+        // Measured first, unless LIST or STAT did already, so it is converted straight into a region of the right
+        // size. The conversion is done outside of the lock, so other messages can be retrieved meanwhile.
+        if (layout == null) layout = measure(message);
+        Entry converted = reserve(layout);
+        try {
+            write(message, converted);
+        } catch (IOException e) {
+            synchronized (this) {
+                drop(converted);
+                release(converted.segment);
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            try {
+                Entry cached = entries.get(key);
+                if (cached != null) {
+                    // Another session converted the same message meanwhile.
+                    drop(converted);
+                    return new WireMessage(cached);
+                }
+                entries.put(key, converted);
+                converted.segment.entries.add(converted);
+                bytes += converted.length;
+                evict(converted);
+                return new WireMessage(converted);
+            } finally {
+                // Only once the message is in its segment, so the segment is not removed meanwhile.
+                release(converted.segment);
+            }
+        }
+    }
+
+    /**
+     * Gives the size of a message as RETR reports it, so LIST and STAT report the same. The size is taken from the
+     * cached copy of the message if there is one, and otherwise measured by converting the message without keeping
+     * the result. The measure is kept, so retrieving the message later converts it in a single pass.
+     *
+     * @param message The file of the message, as stored in the mailbox.
+     * @return The size of the message in wire format, dot-stuffed, without the terminating line.
+     * @throws IOException If the message cannot be read.
+     */
+    public long octets(Path message) throws IOException {
+        String key = key(message);
+        synchronized (this) {
+            Entry cached = entries.get(key);
+            if (cached != null) return cached.size - TERMINATOR.length;
+            Layout known = measured.get(key);
+            if (known != null) return known.size - TERMINATOR.length;
+        }
+        Layout layout = measure(message);
+        synchronized (this) {
+            if (!entries.containsKey(key)) measured.put(key, layout);
+        }
+        return layout.size - TERMINATOR.length;
+    }
+
+    /**
+     * Measures a message by converting it without keeping the result.
+     */
+    private static Layout measure(Path message) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(message))) {
+            OutputStream discard = OutputStream.nullOutputStream();
+            return convert(in, discard, new DataOutputStream(discard));
+        }
+    }
+
+    /**
+     * Gives the unique id of a message, for UIDL (RFC 1939, section 7). The id is derived from the identity, size and
+     * modification time of the message file, the same key the cache uses, so it is stable across sessions and found
+     * without opening the file.
+     *
+     * @param message The file of the message, as stored in the mailbox.
+     * @return 32 hexadecimal digits identifying the message.
+     * @throws IOException If the attributes of the file cannot be read.
+     */
+    public static String uniqueId(Path message) throws IOException {
+        return uniqueId(key(message));
+    }
+
+    /**
+     * Gives the unique id of a message from its key, as given by {@link #key(Path)}.
+     */
+    static String uniqueId(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, UID_BYTES);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Gives the key of a message file, made of its identity, size and modification time, which changes when the file
+     * is replaced by another one, even under the same name.
+     */
+    static String key(Path message) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(message, BasicFileAttributes.class);
+        Object identity = attributes.fileKey() != null ? attributes.fileKey() : message.toAbsolutePath();
+        return identity + ":" + attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+    }
+
+    /**
+     * Reserves a region for a message and its index at the end of the current segment, starting a new segment if it
+     * does not fit. The segment is retained until the region is written.
+     */
+    private synchronized Entry reserve(Layout layout) throws IOException {
+        long length = layout.size + (long) layout.bodyLines * Long.BYTES;
+        if (current == null || current.reserved > 0 && current.reserved + length > segmentBytes) {
+            Segment previous = current;
+            Path file = dir.resolve(++segments + SEGMENT_SUFFIX);
+            current = new Segment(file, FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE));
+            if (previous != null) check(previous);
+        }
+        Entry entry = new Entry(current, current.reserved, layout);
+        current.reserved += length;
+        current.refs++;
+        return entry;
+    }
+
+    /**
+     * Converts a message into the region reserved for it, and its index right after it.
+     */
+    private static void write(Path message, Entry entry) throws IOException {
+        FileChannel channel = entry.segment.channel;
+        long index = entry.position + entry.size;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(message));
+             OutputStream out = new RegionOutputStream(channel, entry.position, index);
+             DataOutputStream lineEnds = new DataOutputStream(
+                     new RegionOutputStream(channel, index, entry.position + entry.length))) {
+            Layout written = convert(in, out, lineEnds);
+            if (written.size != entry.size || written.bodyLines != entry.bodyLines) {
+                throw new IOException(message + " changed while it was converted.");
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used messages until the cache fits its size, except the one just added.
+     */
+    private void evict(Entry keep) {
+        for (Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry == keep) continue;
+            it.remove();
+            bytes -= entry.length;
+            // A session still sending the message keeps its segment open until it is done.
+            drop(entry);
+        }
+    }
+
+    /**
+     * Marks the region of a message as unused. Must be called while holding the lock of this cache.
+     */
+    private void drop(Entry entry) {
+        entry.dropped = true;
+        entry.segment.entries.remove(entry);
+        entry.segment.unused += entry.length;
+        check(entry.segment);
+    }
+
+    /**
+     * Releases a reference to a segment. Must be called while holding the lock of this cache.
+     */
+    private void release(Segment segment) {
+        segment.refs--;
+        check(segment);
+    }
+
+    /**
+     * Removes a segment that is no longer used, or queues it for compaction once enough of it is unused. The current
+     * segment is left alone, since messages are still being appended to it. Must be called while holding the lock of
+     * this cache.
+     */
+    private void check(Segment segment) {
+        if (segment == current || segment.removed) return;
+        if (segment.entries.isEmpty() && segment.refs == 0) {
+            segment.removed = true;
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                System.err.println("Could not remove " + segment.file + " from the wire format cache.");
+            }
+        } else if (!segment.compacting && !segment.entries.isEmpty()
+                && segment.unused * 100 >= segment.reserved * compactPercent) {
+            segment.compacting = true;
+            compactions.add(segment);
+        }
+    }
+
+    private void compactLoop() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                compact(compactions.take());
+            } catch (InterruptedException e) {
+                // The compactor runs for the life of the process.
+            } catch (RuntimeException e) {
+                System.err.println("Error compacting the wire format cache.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Moves the messages still in a segment to the current segment, after which the segment is removed once no
+     * session is sending from it.
+     */
+    private void compact(Segment segment) {
+        List<Entry> moving;
+        synchronized (this) {
+            moving = new ArrayList<>(segment.entries);
+            segment.refs++;
+        }
+        boolean compacted = false;
+        try {
+            for (Entry entry : moving) {
+                Entry moved;
+                try {
+                    moved = reserve(entry.layout());
+                } catch (IOException e) {
+                    System.err.println("Could not compact " + segment.file + ": " + e);
+                    return;
+                }
+                try {
+                    copy(segment.channel, entry.position, moved.segment.channel, moved.position, entry.length);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        drop(moved);
+                        release(moved.segment);
+                    }
+                    System.err.println("Could not compact " + segment.file + ": " + e);
+                    return;
+                }
+                synchronized (this) {
+                    if (entry.dropped) {
+                        drop(moved);
+                    } else {
+                        // Moved in place, so the message keeps its rank among the least recently used.
+                        segment.entries.remove(entry);
+                        segment.unused += entry.length;
+                        entry.segment = moved.segment;
+                        entry.position = moved.position;
+                        moved.segment.entries.add(entry);
+                    }
+                    release(moved.segment);
+                }
+            }
+            compacted = true;
+        } finally {
+            synchronized (this) {
+                // A segment that could not be compacted is not queued again, and is removed once its messages are.
+                segment.compacting = !compacted;
+                release(segment);
+            }
+        }
+    }
+
+    private static void copy(FileChannel from, long position, FileChannel to, long target, long length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        for (long done = 0; done < length; ) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - done));
+            if (from.read(buffer, position + done) < 0) throw new EOFException();
+            buffer.flip();
+            while (buffer.hasRemaining()) done += to.write(buffer, target + done);
+        }
+    }
+
+    private void clear() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Copies a message, turning bare LF line endings into CRLF, dot-stuffing lines starting with a period, and ending
+     * it with the terminating line. Records where every line of the body ends in the index.
+     *
+     * @return Where the headers end, the number of body lines, and the size of the converted message.
+     */
+    private static Layout convert(InputStream in, OutputStream out, DataOutputStream lineEnds) throws IOException {
+        long offset = 0;
+        long headerEnd = -1;
+        int bodyLines = 0;
+        // Bytes of the current line, without its LF.
+        int lineLength = 0;
+        int previous = -1;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                if (lineLength == 0) break;
+                // A last line without its line ending gets one.
+                b = '\n';
+            }
+            if (lineLength == 0 && b == '.') {
+                out.write('.');
+                offset++;
+            }
+            if (b != '\n') {
+                out.write(b);
+                offset++;
+                lineLength++;
+                previous = b;
+                continue;
+            }
+
+            if (previous != '\r') {
+                out.write('\r');
+                offset++;
+            }
+            out.write('\n');
+            offset++;
+            if (headerEnd >= 0) {
+                lineEnds.writeLong(offset);
+                bodyLines++;
+            } else if (lineLength == 0 || lineLength == 1 && previous == '\r') {
+                headerEnd = offset;
+            }
+            lineLength = 0;
+            previous = b;
+        }
+        out.write(TERMINATOR);
+        // A message without a body is all headers.
+        return new Layout(offset + TERMINATOR.length, headerEnd >= 0 ? headerEnd : offset, bodyLines);
+    }
+
+    /**
+     * The size of a message in wire format, and where the headers end, as found by converting it.
+     */
+    private static final class Layout {
+
+        private final long size;
+        private final long headerEnd;
+        private final int bodyLines;
+
+        private Layout(long size, long headerEnd, int bodyLines) {
+            this.size = size;
+            this.headerEnd = headerEnd;
+            this.bodyLines = bodyLines;
+        }
+    }
+
+    /**
+     * A cached message, and the region of a segment holding it, followed by its index. The region changes when the
+     * message is moved by the compactor; these fields are guarded by the lock of the cache.
+     */
+    private static final class Entry {
+
+        private Segment segment;
+        private long position;
+        private final long size;
+        private final long headerEnd;
+        private final int bodyLines;
+        private final long length;
+        private boolean dropped = false;
+
+        private Entry(Segment segment, long position, Layout layout) {
+            this.segment = segment;
+            this.position = position;
+            this.size = layout.size;
+            this.headerEnd = layout.headerEnd;
+            this.bodyLines = layout.bodyLines;
+            this.length = size + (long) bodyLines * Long.BYTES;
+        }
+
+        private Layout layout() {
+            return new Layout(size, headerEnd, bodyLines);
+        }
+    }
+
+    /**
+     * A segment file, with the messages it holds. Guarded by the lock of the cache.
+     */
+    private static final class Segment {
+
+        private final Path file;
+        private final FileChannel channel;
+        private final Set<Entry> entries = new HashSet<>();
+        // Bytes reserved for messages, and bytes of messages dropped or moved since.
+        private long reserved = 0;
+        private long unused = 0;
+        // Messages being written or sent, and compactions, using the segment.
+        private int refs = 0;
+        private boolean compacting = false;
+        private boolean removed = false;
+
+        private Segment(Path file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Writes to a region of a file shared with other writers, through a buffer, without using the position of the
+     * channel. Refuses to write past the end of the region.
+     */
+    private static final class RegionOutputStream extends OutputStream {
+
+        private final FileChannel channel;
+        private final long end;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long position;
+
+        private RegionOutputStream(FileChannel channel, long position, long end) {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) flush();
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) flush();
+                int count = Math.min(len, buffer.remaining());
+                buffer.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            if (position + buffer.remaining() > end) throw new IOException("Message larger than its region");
+            while (buffer.hasRemaining()) position += channel.write(buffer, position);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * A message in wire format, with the index TOP uses to find the end of the headers and of every body line. Keeps
+     * the segment holding it open, and in place, until it is released.
+     */
+    public final class WireMessage {
+
+        private final Segment segment;
+        private final long position;
+        private final long size;
+        private final long headerEnd;
+        private final int bodyLines;
+        private boolean released = false;
+
+        /**
+         * Retains the segment of an entry. Must be called while holding the lock of the cache.
+         */
+        private WireMessage(Entry entry) {
+            this.segment = entry.segment;
+            this.position = entry.position;
+            this.size = entry.size;
+            this.headerEnd = entry.headerEnd;
+            this.bodyLines = entry.bodyLines;
+            segment.refs++;
+        }
+
+        /**
+         * @return The segment file holding the message, open for reading, which must not be closed.
+         */
+        public FileChannel getChannel() {
+            return segment.channel;
+        }
+
+        /**
+         * @return The position of the message in its segment.
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * @return The size of the message in wire format, including the terminating line.
+         */
+        public long getLength() {
+            return size;
+        }
+
+        /**
+         * @return The size of the message, as reported by RETR: dot-stuffed, without the terminating line.
+         */
+        public long getOctets() {
+            return size - TERMINATOR.length;
+        }
+
+        /**
+         * Finds how much of the message TOP sends: the headers, the blank line after them, and the first lines of the
+         * body. Only reads the position of the last line sent from the index.
+         *
+         * @param lines The number of body lines to include.
+         * @return The number of bytes from the start of the message to send, without the terminating line.
+         * @throws IOException If the index cannot be read.
+         */
+        public long topLength(int lines) throws IOException {
+            if (lines <= 0) return headerEnd;
+            if (lines >= bodyLines) return getOctets();
+            ByteBuffer lineEnd = ByteBuffer.allocate(Long.BYTES);
+            long index = position + size + (long) (lines - 1) * Long.BYTES;
+            while (lineEnd.hasRemaining()) {
+                if (segment.channel.read(lineEnd, index + lineEnd.position()) < 0) {
+                    throw new EOFException(segment.file.toString());
+                }
+            }
+            return lineEnd.flip().getLong();
+        }
+
+        /**
+         * Lets the segment holding the message be compacted or removed. Can be called more than once.
+         */
+        public void release() {
+            synchronized (WireFormatCache.this) {
+                if (released) return;
+                released = true;
+                WireFormatCache.this.release(segment);
+            }
+        }
+    }
+}